@@ -0,0 +1,70 @@
+package org.fenixedu.spaces.migration;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.fenixedu.spaces.migration.ImportSpacesTask.ImportOccupationBean;
+import org.joda.time.Interval;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+
+/**
+ * Per occupation costs of the import, for occupations exported interval by interval or as a recurrence rule.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OccupationBenchmark {
+
+    @Param({ "1", "15", "60", "500" })
+    public int intervals;
+
+    @Param({ "false", "true" })
+    public boolean recurrent;
+
+    private final Gson gson = new Gson();
+    private String json;
+    private ImportOccupationBean bean;
+
+    @Setup
+    public void setup() {
+        json = SyntheticBeans.occupation(new Random(42), 2551210590210L, intervals, recurrent);
+        bean = gson.fromJson(json, ImportOccupationBean.class);
+    }
+
+    @Benchmark
+    public ImportOccupationBean parseJson() {
+        return gson.fromJson(json, ImportOccupationBean.class);
+    }
+
+    @Benchmark
+    public String writeJson() {
+        return gson.toJson(bean);
+    }
+
+    @Benchmark
+    public List<Interval> getIntervals() {
+        return bean.getIntervals();
+    }
+
+    @Benchmark
+    public List<Interval> parseAndExpand() {
+        return gson.fromJson(json, ImportOccupationBean.class).getIntervals();
+    }
+
+}
@@ -0,0 +1,79 @@
+package org.fenixedu.spaces.migration;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Legacy to new oid translation as done by getNewSpaceId, one external id string at a time and in bulk on longs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OidBenchmark {
+
+    private static final int IDS = 4096;
+    private static final long CLASS_ID = 233;
+
+    private final String[] externalIds = new String[IDS];
+    private final long[] oids = new long[IDS];
+    private final long[] scratch = new long[IDS];
+    private final LongLongMap created = new LongLongMap(IDS / 16);
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(42);
+        for (int i = 0; i < IDS; i++) {
+            oids[i] = (2551210590208L & ~0xFFFFL) + random.nextInt(0xFFFF) + 1;
+            externalIds[i] = Long.toString(oids[i]);
+            if (i % 16 == 0) {
+                created.put(oids[i], oids[i] + 1);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(IDS)
+    public void translateExternalIds(Blackhole blackhole) {
+        for (String externalId : externalIds) {
+            blackhole.consume(DomainClassRegistry.translate(CLASS_ID, externalId));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(IDS)
+    public long[] translateBulk() {
+        System.arraycopy(oids, 0, scratch, 0, IDS);
+        DomainClassRegistry.translateAll(CLASS_ID, scratch, 0, IDS);
+        return scratch;
+    }
+
+    /**
+     * What the event space occupation import does per record: a primitive lookup of the created spaces, then arithmetic.
+     */
+    @Benchmark
+    @OperationsPerInvocation(IDS)
+    public long[] resolveWithCreatedSpaces() {
+        for (int i = 0; i < IDS; i++) {
+            final long createdOid = created.get(oids[i], 0);
+            scratch[i] = createdOid != 0 ? createdOid : DomainClassRegistry.translate(CLASS_ID, oids[i]);
+        }
+        return scratch;
+    }
+
+}
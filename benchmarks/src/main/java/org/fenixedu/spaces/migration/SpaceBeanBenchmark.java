@@ -0,0 +1,104 @@
+package org.fenixedu.spaces.migration;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.fenixedu.spaces.migration.ImportSpacesTask.SpaceBean;
+import org.fenixedu.spaces.migration.ImportSpacesTask.SpaceBean.SpaceInformationBean;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.gson.Gson;
+
+/**
+ * Per space costs of the import: json parsing and writing, the date parsing, code normalization and blueprint lookup
+ * done by SpaceBean.beans, and the digest used to skip unchanged spaces.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpaceBeanBenchmark {
+
+    @Param({ "1", "4", "16" })
+    public int informations;
+
+    @Param({ "0", "2", "8" })
+    public int blueprints;
+
+    @Param({ "4096", "262144" })
+    public int blueprintBytes;
+
+    private final Gson gson = new Gson();
+    private String json;
+    private SpaceBean bean;
+    private long now;
+
+    @Setup
+    public void setup() {
+        // a room, the only type whose informations carry classification codes
+        json = SyntheticBeans.space(new Random(42), 2551210590210L, 2551210590209L, "Room", informations, blueprints,
+                blueprintBytes);
+        bean = gson.fromJson(json, SpaceBean.class);
+        for (SpaceInformationBean info : bean.informations) {
+            if (info.classificationCode == null) {
+                throw new IllegalStateException("synthetic room without classification code");
+            }
+        }
+        now = System.currentTimeMillis();
+    }
+
+    @Benchmark
+    public SpaceBean parseJson() {
+        return gson.fromJson(json, SpaceBean.class);
+    }
+
+    @Benchmark
+    public String writeJson() {
+        return gson.toJson(bean);
+    }
+
+    @Benchmark
+    public void parseDates(Blackhole blackhole) {
+        for (SpaceInformationBean info : bean.informations) {
+            blackhole.consume(info.getValidFrom());
+            blackhole.consume(info.getValidUntil());
+        }
+    }
+
+    @Benchmark
+    public void normalizeCodes(Blackhole blackhole) {
+        for (SpaceInformationBean info : bean.informations) {
+            blackhole.consume(ClassificationIndex.normalize(info.classificationCode));
+        }
+    }
+
+    /**
+     * Builds the index and resolves the blueprint of every information, decoding each base64 blueprint once.
+     */
+    @Benchmark
+    public void findBlueprints(Blackhole blackhole) {
+        final BlueprintIndex index = new BlueprintIndex(bean.blueprints, null, now);
+        for (SpaceInformationBean info : bean.informations) {
+            blackhole.consume(index.find(info.getValidFrom(), info.getValidUntil()));
+        }
+    }
+
+    @Benchmark
+    public String digest() {
+        return bean.digest();
+    }
+
+}
@@ -0,0 +1,172 @@
+package org.fenixedu.spaces.migration;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Random;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import com.google.common.io.BaseEncoding;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Json records shaped like the ones the export writes, with made up content of a given size. They are parsed with the
+ * import's own beans, so the benchmarks measure exactly the import code paths.
+ */
+final class SyntheticBeans {
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormat.forPattern("dd/MM/yyyy");
+    private static final DateTimeFormatter DATE_TIME_FORMAT = DateTimeFormat.forPattern("dd/MM/yyyy HH:mm:ss");
+    private static final String[] CODES = { "01.01", "02.03", "03.06", "3.6", "04.10", "11.01" };
+    private static final LocalDate EPOCH = new LocalDate(2000, 1, 1);
+
+    private SyntheticBeans() {
+    }
+
+    public static String space(Random random, long externalId, Long parentExternalId, String type, int informations,
+            int blueprints, int blueprintBytes) {
+        final StringWriter out = new StringWriter();
+        try (JsonWriter writer = new JsonWriter(out)) {
+            space(writer, random, externalId, parentExternalId, type, null, informations, blueprints, blueprintBytes);
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes a space of the given type as the next value of the writer. Its access groups are picked from the given
+     * persistent group external ids, which must exist in the target database, or left empty when there are none.
+     */
+    public static void space(JsonWriter writer, Random random, long externalId, Long parentExternalId, String type,
+            String[] groups, int informations, int blueprints, int blueprintBytes) throws IOException {
+        writer.beginObject();
+        writer.name("parentExternalId").value(parentExternalId == null ? null : parentExternalId.toString());
+        writer.name("externalId").value(Long.toString(externalId));
+        writer.name("createdOn").value(date(random));
+        writer.name("examCapacity").value(random.nextInt(200));
+        writer.name("normalCapacity").value(random.nextInt(200));
+        writer.name("type").value(type);
+        writer.name("occupationGroup").value(group(random, groups));
+        writer.name("managementSpaceGroup").value(group(random, groups));
+        writer.name("lessonOccupationsAccessGroup").value(group(random, groups));
+        writer.name("writtenEvaluationOccupationsAccessGroup").value(group(random, groups));
+        writer.name("informations").beginArray();
+        LocalDate from = EPOCH.plusDays(random.nextInt(3650));
+        for (int i = 0; i < informations; i++) {
+            writer.beginObject();
+            writer.name("capacity").value(random.nextInt(200));
+            writer.name("blueprintNumber").value(Integer.toString(random.nextInt(1000)));
+            from = validity(writer, random, from, i == informations - 1);
+            writer.name("emails").value("space" + externalId + "@example.org");
+            writer.name("ageQuality").value(random.nextBoolean());
+            writer.name("area").value(random.nextInt(100000) / 100.0);
+            writer.name("description").value("description of space " + externalId);
+            writer.name("distanceFromSanitaryInstalationsQuality").value(random.nextBoolean());
+            writer.name("doorNumber").value(Integer.toString(random.nextInt(100)));
+            writer.name("heightQuality").value(random.nextBoolean());
+            writer.name("identification").value("R" + externalId);
+            writer.name("illuminationQuality").value(random.nextBoolean());
+            writer.name("observations").nullValue();
+            writer.name("securityQuality").value(random.nextBoolean());
+            // only rooms carry a classification, the other types get theirs from the type
+            writer.name("classificationCode").value("Room".equals(type) ? CODES[random.nextInt(CODES.length)] : null);
+            writer.name("name").value("Space " + externalId);
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.name("blueprints").beginArray();
+        from = EPOCH.plusDays(random.nextInt(3650));
+        for (int i = 0; i < blueprints; i++) {
+            final byte[] content = new byte[blueprintBytes];
+            random.nextBytes(content);
+            writer.beginObject();
+            from = validity(writer, random, from, i == blueprints - 1);
+            writer.name("creationPerson").value("ist" + random.nextInt(100000));
+            writer.name("raw").value(BaseEncoding.base64().encode(content));
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.endObject();
+    }
+
+    /**
+     * A weekly occupation with the given number of intervals, either listed one by one or as its recurrence rule with a
+     * single exception.
+     */
+    public static String occupation(Random random, Long space, int intervals, boolean recurrent) {
+        final StringWriter out = new StringWriter();
+        try (JsonWriter writer = new JsonWriter(out)) {
+            occupation(writer, random, space, intervals, recurrent);
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+        return out.toString();
+    }
+
+    public static void occupation(JsonWriter writer, Random random, Long space, int intervals, boolean recurrent)
+            throws IOException {
+        final LocalDate begin = EPOCH.plusDays(random.nextInt(3650));
+        final LocalDate end = begin.plusWeeks(intervals - 1);
+        final int hour = 8 + random.nextInt(10);
+        writer.beginObject();
+        writer.name("description").value("synthetic occupation");
+        writer.name("title").value("occupation " + random.nextInt());
+        writer.name("frequency").value("WEEKLY");
+        writer.name("beginDate").value(DATE_FORMAT.print(begin));
+        writer.name("endDate").value(DATE_FORMAT.print(end));
+        writer.name("beginTime").value(String.format("%02d:00:00", hour));
+        writer.name("endTime").value(String.format("%02d:30:00", hour + 1));
+        writer.name("saturday").value(false);
+        writer.name("sunday").value(false);
+        writer.name("spaces").beginArray().value(space.toString()).endArray();
+        writer.name("intervals").beginArray();
+        if (!recurrent) {
+            for (int i = 0; i < intervals; i++) {
+                interval(writer, begin.plusWeeks(i), hour);
+            }
+        }
+        writer.endArray();
+        if (recurrent) {
+            writer.name("recurrent").value(true);
+            writer.name("excluded").beginArray();
+            interval(writer, begin.plusWeeks(intervals / 2), hour);
+            writer.endArray();
+            // the intervals are printed in the default zone, the rule has to be expanded in the same one
+            writer.name("zone").value(DateTimeZone.getDefault().getID());
+        }
+        writer.endObject();
+    }
+
+    private static void interval(JsonWriter writer, LocalDate day, int hour) throws IOException {
+        final DateTime start = day.toDateTimeAtStartOfDay().withHourOfDay(hour);
+        writer.beginObject();
+        writer.name("start").value(DATE_TIME_FORMAT.print(start));
+        writer.name("end").value(DATE_TIME_FORMAT.print(start.plusMinutes(90)));
+        writer.endObject();
+    }
+
+    /**
+     * Writes a validity starting at the given day and returns the day after it ends, so consecutive entries don't overlap.
+     * The last one is left open, as the current information of a space is.
+     */
+    private static LocalDate validity(JsonWriter writer, Random random, LocalDate from, boolean last) throws IOException {
+        final LocalDate until = from.plusDays(1 + random.nextInt(730));
+        writer.name("validFrom").value(DATE_FORMAT.print(from));
+        writer.name("validUntil").value(last ? null : DATE_FORMAT.print(until));
+        return until.plusDays(1);
+    }
+
+    private static String group(Random random, String[] groups) {
+        return groups == null || groups.length == 0 ? null : groups[random.nextInt(groups.length)];
+    }
+
+    private static String date(Random random) {
+        return DATE_FORMAT.print(EPOCH.plusDays(random.nextInt(7300)));
+    }
+
+}
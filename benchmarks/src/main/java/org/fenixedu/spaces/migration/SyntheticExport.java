@@ -0,0 +1,244 @@
+package org.fenixedu.spaces.migration;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.common.base.Charsets;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Writes a made up export with the files ImportSpacesTask reads: classifications, spaces, occupations and event space
+ * occupations, in the json format of SpaceMigrationTask. The space tree, the size of each space and of each occupation are
+ * configurable, so the import can be rehearsed well above the size of the real export.
+ *
+ * Run with the target directory and any of the options, e.g. {@code SyntheticExport /tmp/export --campuses=4 --fanout=12}.
+ * Spaces are written breadth first, parents before their children, as the import expects.
+ */
+public class SyntheticExport {
+
+    private static final String[] TYPES = { "Campus", "Building", "Floor", "Room", "RoomSubdivision" };
+    // legacy oids: the class id in the upper half and a counter below, the import only keeps the low 16 bits of the counter
+    private static final long SPACE_CLASS = 2551210590208L & ~0xFFFFFFFFL;
+    private static final long ALLOCATION_CLASS = 2559800524800L & ~0xFFFFFFFFL;
+
+    private long seed = 42;
+    private int campuses = 2;
+    private int depth = 4;
+    private int fanout = 8;
+    private int informations = 2;
+    private int blueprints = 1;
+    private int blueprintBytes = 16 * 1024;
+    private int occupations = 4;
+    private int intervals = 15;
+    private double recurrent = 0;
+    private int eventOccupations = 8;
+    private boolean compress = false;
+    // external ids of persistent groups of the target database, the spaces get no access groups without them
+    private String[] groups = null;
+
+    private final Random random;
+    private long spaceCounter = 0;
+    private long allocationCounter = 0;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: SyntheticExport <dir> [--seed=42] [--campuses=2] [--depth=4] [--fanout=8] "
+                    + "[--informations=2] [--blueprints=1] [--blueprintBytes=16384] [--occupations=4] [--intervals=15] "
+                    + "[--recurrent=0.0] [--eventOccupations=8] [--groups=<oid>,<oid>,...] [--compress]");
+            System.exit(1);
+        }
+        final SyntheticExport export = new SyntheticExport(args);
+        export.write(new File(args[0]));
+    }
+
+    private SyntheticExport(String[] args) {
+        for (int i = 1; i < args.length; i++) {
+            option(args[i]);
+        }
+        this.random = new Random(seed);
+    }
+
+    private void option(String arg) {
+        if (arg.equals("--compress")) {
+            compress = true;
+            return;
+        }
+        final int eq = arg.indexOf('=');
+        if (!arg.startsWith("--") || eq < 0) {
+            throw new IllegalArgumentException("bad option " + arg);
+        }
+        final String name = arg.substring(2, eq);
+        final String value = arg.substring(eq + 1);
+        switch (name) {
+        case "seed":
+            seed = Long.parseLong(value);
+            break;
+        case "campuses":
+            campuses = Integer.parseInt(value);
+            break;
+        case "depth":
+            depth = Integer.parseInt(value);
+            break;
+        case "fanout":
+            fanout = Integer.parseInt(value);
+            break;
+        case "informations":
+            informations = Integer.parseInt(value);
+            break;
+        case "blueprints":
+            blueprints = Integer.parseInt(value);
+            break;
+        case "blueprintBytes":
+            blueprintBytes = Integer.parseInt(value);
+            break;
+        case "occupations":
+            occupations = Integer.parseInt(value);
+            break;
+        case "intervals":
+            intervals = Integer.parseInt(value);
+            break;
+        case "recurrent":
+            recurrent = Double.parseDouble(value);
+            break;
+        case "eventOccupations":
+            eventOccupations = Integer.parseInt(value);
+            break;
+        case "groups":
+            groups = value.isEmpty() ? null : value.split(",");
+            break;
+        default:
+            throw new IllegalArgumentException("unknown option " + name);
+        }
+    }
+
+    public void write(File dir) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("can't create " + dir);
+        }
+        long start = System.currentTimeMillis();
+        final int codes;
+        try (JsonWriter writer = open(dir, "classifications")) {
+            codes = writeClassifications(writer);
+        }
+        log("classifications", codes, start);
+
+        start = System.currentTimeMillis();
+        final List<Long> leaves;
+        try (JsonWriter writer = open(dir, "spaces")) {
+            leaves = writeSpaces(writer);
+        }
+        log("spaces", spaceCounter, start);
+        if (spaceCounter > 0xFFFF) {
+            System.out.printf("warning: %d spaces, more than the 65535 distinct oids getNewSpaceId can produce\n",
+                    spaceCounter);
+        }
+
+        start = System.currentTimeMillis();
+        try (JsonWriter writer = open(dir, "occupations")) {
+            writer.beginArray();
+            for (Long space : leaves) {
+                for (int i = 0; i < occupations; i++) {
+                    SyntheticBeans.occupation(writer, random, space, intervals, random.nextDouble() < recurrent);
+                }
+            }
+            writer.endArray();
+        }
+        log("occupations", (long) leaves.size() * occupations, start);
+
+        start = System.currentTimeMillis();
+        try (JsonWriter writer = open(dir, "event_space_occupations")) {
+            writer.beginArray();
+            for (Long space : leaves) {
+                for (int i = 0; i < eventOccupations; i++) {
+                    writer.beginObject();
+                    writer.name("eventSpaceOccupation").value(Long.toString(ALLOCATION_CLASS + ++allocationCounter));
+                    writer.name("space").value(space.toString());
+                    writer.endObject();
+                }
+            }
+            writer.endArray();
+        }
+        log("event space occupations", allocationCounter, start);
+    }
+
+    /**
+     * Top level codes 1 to 11, each with ten children, which covers the codes SyntheticBeans uses and the "other spaces"
+     * classification (11) the import hangs the space types from.
+     */
+    private int writeClassifications(JsonWriter writer) throws IOException {
+        int count = 0;
+        writer.beginArray();
+        for (int code = 1; code <= 11; code++) {
+            writer.beginObject();
+            writer.name("name").value("Classification " + code);
+            writer.name("childs").beginArray();
+            for (int child = 1; child <= 10; child++) {
+                writer.beginObject();
+                writer.name("name").value("Classification " + code + "." + child);
+                writer.name("childs").beginArray().endArray();
+                writer.name("code").value(child);
+                writer.endObject();
+                count++;
+            }
+            writer.endArray();
+            writer.name("code").value(code);
+            writer.endObject();
+            count++;
+        }
+        writer.endArray();
+        return count;
+    }
+
+    /**
+     * Writes the tree level by level and returns the spaces of its last level, which get the occupations.
+     */
+    private List<Long> writeSpaces(JsonWriter writer) throws IOException {
+        writer.beginArray();
+        List<Long> level = new ArrayList<>();
+        for (int i = 0; i < campuses; i++) {
+            level.add(writeSpace(writer, null, 0));
+        }
+        for (int d = 1; d < depth; d++) {
+            final List<Long> next = new ArrayList<>(level.size() * fanout);
+            for (Long parent : level) {
+                for (int i = 0; i < fanout; i++) {
+                    next.add(writeSpace(writer, parent, d));
+                }
+            }
+            level = next;
+        }
+        writer.endArray();
+        return level;
+    }
+
+    private long writeSpace(JsonWriter writer, Long parent, int level) throws IOException {
+        final long externalId = SPACE_CLASS + ++spaceCounter;
+        SyntheticBeans.space(writer, random, externalId, parent, TYPES[Math.min(level, TYPES.length - 1)], groups,
+                informations, blueprints, blueprintBytes);
+        return externalId;
+    }
+
+    private JsonWriter open(File dir, String name) throws IOException {
+        final String filename = MigrationFormat.JSON.filename(name) + (compress ? ParallelGzipOutputStream.SUFFIX : "");
+        OutputStream out = new FileOutputStream(new File(dir, filename));
+        if (compress) {
+            out = new GZIPOutputStream(out, 1 << 16);
+        }
+        final JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, Charsets.UTF_8), 1 << 16));
+        writer.setIndent("  ");
+        return writer;
+    }
+
+    private void log(String what, long count, long start) {
+        System.out.printf("%d %s in %d ms\n", count, what, System.currentTimeMillis() - start);
+    }
+
+}
@@ -0,0 +1,96 @@
+package org.fenixedu.spaces.migration;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.fenixedu.bennu.core.domain.groups.PersistentGroup;
+import org.fenixedu.bennu.core.groups.Group;
+import org.fenixedu.bennu.core.groups.NobodyGroup;
+
+import pt.ist.fenixframework.FenixFramework;
+
+/**
+ * Resolves the occupation and management groups of a space from its persistent group ids, memoizing the composite groups
+ * by the tuple of ids since most spaces share the same few groups.
+ */
+class AccessGroupResolver {
+
+    static class AccessGroups {
+        private final Group occupationsAccessGroup;
+        private final Group managementAccessGroup;
+
+        private AccessGroups(Group occupationsAccessGroup, Group managementAccessGroup) {
+            this.occupationsAccessGroup = occupationsAccessGroup;
+            this.managementAccessGroup = managementAccessGroup;
+        }
+
+        public Group getOccupationsAccessGroup() {
+            return occupationsAccessGroup;
+        }
+
+        public Group getManagementAccessGroup() {
+            return managementAccessGroup;
+        }
+    }
+
+    private final ConcurrentMap<List<String>, AccessGroups> cache = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public AccessGroups resolve(String occupationGroup, String lessonOccupationsAccessGroup,
+            String writtenEvaluationOccupationsAccessGroup, String managementSpaceGroup) {
+        final List<String> key =
+                Arrays.asList(occupationGroup, lessonOccupationsAccessGroup, writtenEvaluationOccupationsAccessGroup,
+                        managementSpaceGroup);
+        AccessGroups groups = cache.get(key);
+        if (groups != null) {
+            hits.incrementAndGet();
+            return groups;
+        }
+        misses.incrementAndGet();
+        groups =
+                new AccessGroups(occupationsAccessGroup(occupationGroup, lessonOccupationsAccessGroup,
+                        writtenEvaluationOccupationsAccessGroup), managementAccessGroup(managementSpaceGroup));
+        final AccessGroups previous = cache.putIfAbsent(key, groups);
+        return previous == null ? groups : previous;
+    }
+
+    private static Group occupationsAccessGroup(String... groupIds) {
+        Group group = NobodyGroup.get();
+        for (String groupId : groupIds) {
+            if (groupId == null) {
+                continue;
+            }
+            final PersistentGroup persistentGroup = FenixFramework.getDomainObject(groupId);
+            if (persistentGroup != null) {
+                group = group.or(persistentGroup.toGroup());
+            }
+        }
+        return group.equals(NobodyGroup.get()) ? null : group;
+    }
+
+    private static Group managementAccessGroup(String managementSpaceGroup) {
+        if (managementSpaceGroup == null) {
+            return null;
+        }
+        final PersistentGroup managementGroup = FenixFramework.getDomainObject(managementSpaceGroup);
+        return FenixFramework.isDomainObjectValid(managementGroup) ? managementGroup.toGroup() : null;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("access groups cache with %d entries: %d hits, %d misses", cache.size(), hits.get(), misses.get());
+    }
+
+}
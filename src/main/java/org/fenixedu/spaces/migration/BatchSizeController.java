@@ -0,0 +1,140 @@
+package org.fenixedu.spaces.migration;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import pt.ist.fenixframework.CallableWithoutException;
+import pt.ist.fenixframework.FenixFramework;
+
+/**
+ * Sizes write transactions so that each commit takes about the target latency and touches about the target number of
+ * objects. The size grows slowly on fast commits, shrinks on slow ones and is halved whenever a transaction had to be
+ * restarted because of a conflict. The restarts themselves happen inside the transaction manager, so only the batches after
+ * a conflicting one are smaller. Safe to share between worker threads.
+ */
+class BatchSizeController {
+
+    private final int min;
+    private final int max;
+    private final long targetNanos;
+    private final long targetWeight;
+    private final MigrationMetrics metrics;
+    private final String name;
+
+    private double size;
+    private long commits = 0;
+    private long conflicts = 0;
+    private long records = 0;
+    private long totalNanos = 0;
+
+    public BatchSizeController(int min, int max, int initial, long targetMillis, long targetWeight) {
+        this(min, max, initial, targetMillis, targetWeight, null, null);
+    }
+
+    /**
+     * Also reports to the metrics, under the given name, the time spent reading batches, running the work and committing,
+     * and the latency of each transaction.
+     */
+    public BatchSizeController(int min, int max, int initial, long targetMillis, long targetWeight, MigrationMetrics metrics,
+            String name) {
+        this.metrics = metrics;
+        this.name = name;
+        this.min = min;
+        this.max = max;
+        this.size = initial;
+        this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+        this.targetWeight = targetWeight;
+    }
+
+    public synchronized int nextBatchSize() {
+        return (int) size;
+    }
+
+    public <T> List<T> nextBatch(Iterator<T> iterator) {
+        final int batchSize = nextBatchSize();
+        final List<T> batch = new ArrayList<>(batchSize);
+        final long start = System.nanoTime();
+        while (batch.size() < batchSize && iterator.hasNext()) {
+            batch.add(iterator.next());
+        }
+        if (metrics != null) {
+            metrics.time(name + ".parse", start);
+            metrics.count(name + ".records", batch.size());
+        }
+        return batch;
+    }
+
+    /**
+     * Runs the work in a write transaction, feeding its latency, weight and restarts back into the controller.
+     */
+    public <T> T commit(int batchRecords, long batchWeight, final CallableWithoutException<T> work) {
+        final int[] attempts = new int[] { 0 };
+        final long[] workNanos = new long[] { 0 };
+        final long start = System.nanoTime();
+        final T result = FenixFramework.getTransactionManager().withTransaction(new CallableWithoutException<T>() {
+
+            @Override
+            public T call() {
+                attempts[0]++;
+                final long workStart = System.nanoTime();
+                try {
+                    return work.call();
+                } finally {
+                    workNanos[0] += System.nanoTime() - workStart;
+                }
+            }
+
+        });
+        final long elapsed = System.nanoTime() - start;
+        if (metrics != null) {
+            metrics.add(name + ".write", workNanos[0]);
+            metrics.add(name + ".commit", elapsed - workNanos[0]);
+            metrics.sample(name + ".chunk", elapsed);
+            metrics.count(name + ".restarts", attempts[0] - 1);
+        }
+        if (attempts[0] > 1) {
+            account(batchRecords, elapsed);
+            onConflict(attempts[0] - 1);
+        } else {
+            onCommit(batchRecords, batchWeight, elapsed);
+        }
+        return result;
+    }
+
+    private synchronized void account(int batchRecords, long elapsedNanos) {
+        commits++;
+        records += batchRecords;
+        totalNanos += elapsedNanos;
+    }
+
+    public synchronized void onCommit(int batchRecords, long batchWeight, long elapsedNanos) {
+        account(batchRecords, elapsedNanos);
+        if (batchRecords == 0) {
+            return;
+        }
+        double desired = targetNanos / Math.max(1d, (double) elapsedNanos / batchRecords);
+        if (batchWeight > 0) {
+            desired = Math.min(desired, targetWeight / ((double) batchWeight / batchRecords));
+        }
+        // move halfway towards the estimate and never more than double at once
+        size = clamp(Math.min(size * 2, (size + desired) / 2));
+    }
+
+    public synchronized void onConflict(int restarts) {
+        conflicts += restarts;
+        size = clamp(size / 2);
+    }
+
+    private double clamp(double value) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("batch size %d, %d commits, %d records, %d conflicts, avg commit %d ms", (int) size, commits,
+                records, conflicts, commits == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalNanos / commits));
+    }
+
+}
@@ -0,0 +1,7 @@
+package org.fenixedu.spaces.migration;
+
+interface BeanSink<T> {
+
+    void accept(T bean);
+
+}
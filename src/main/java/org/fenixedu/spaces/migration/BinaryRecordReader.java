@@ -0,0 +1,55 @@
+package org.fenixedu.spaces.migration;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+class BinaryRecordReader<T> extends RecordReader<T> {
+
+    interface RecordDecoder<T> {
+
+        T decode(MigrationDataInput in);
+
+    }
+
+    private final MigrationDataInput in;
+    private final RecordDecoder<T> decoder;
+    private Boolean loaded = null;
+
+    public BinaryRecordReader(String kind, RecordDecoder<T> decoder, InputStream in) throws IOException {
+        this.in = new MigrationDataInput(in, kind);
+        this.decoder = decoder;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (loaded == null) {
+            try {
+                loaded = in.nextRecord();
+            } catch (IOException e) {
+                throw new Error(e);
+            }
+        }
+        return loaded;
+    }
+
+    @Override
+    protected T read() {
+        loaded = null;
+        return decoder.decode(in);
+    }
+
+    @Override
+    protected void skipRecord() {
+        loaded = null;
+    }
+
+    public long getBytes() {
+        return in.getBytes();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+}
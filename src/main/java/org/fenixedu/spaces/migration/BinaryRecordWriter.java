@@ -0,0 +1,44 @@
+package org.fenixedu.spaces.migration;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+class BinaryRecordWriter<T> extends RecordWriter<T> {
+
+    interface RecordEncoder<T> {
+
+        void encode(T bean, MigrationDataOutput out);
+
+    }
+
+    private final MigrationDataOutput out;
+    private final RecordEncoder<T> encoder;
+
+    public BinaryRecordWriter(String kind, RecordEncoder<T> encoder, OutputStream out) throws IOException {
+        this.out = new MigrationDataOutput(out, kind);
+        this.encoder = encoder;
+    }
+
+    @Override
+    protected void write(T bean) {
+        encoder.encode(bean, out);
+        try {
+            out.endRecord();
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+    }
+
+    public long getBytes() {
+        return out.getBytes();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (isFinished()) {
+            out.finish();
+        }
+        out.close();
+    }
+
+}
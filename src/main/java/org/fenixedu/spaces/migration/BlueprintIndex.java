@@ -0,0 +1,102 @@
+package org.fenixedu.spaces.migration;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.fenixedu.spaces.migration.ImportSpacesTask.SpaceBean.BlueprintBean;
+import org.joda.time.DateTime;
+
+/**
+ * Blueprints of a single space sorted by the start of their validity, answering which blueprint overlaps a given range with
+ * a binary search. Dates are parsed once when the index is built and each blueprint is decoded at most once.
+ */
+class BlueprintIndex {
+
+    private final BlueprintBean[] blueprints;
+    private final long[] starts;
+    private final long[] ends;
+    // position of the blueprint with the latest end among the first i + 1 blueprints
+    private final int[] latestEnding;
+    private final byte[][] contents;
+    private final BlueprintPack.Reader pack;
+    private final long now;
+
+    public BlueprintIndex(Collection<BlueprintBean> beans, BlueprintPack.Reader pack, long now) {
+        this.pack = pack;
+        this.now = now;
+        final List<BlueprintBean> sorted = new ArrayList<>(beans == null ? Collections.<BlueprintBean> emptyList() : beans);
+        final int size = sorted.size();
+        final long[] unsortedStarts = new long[size];
+        final List<Integer> order = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            unsortedStarts[i] = millis(sorted.get(i).getValidFrom());
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Long.compare(unsortedStarts[o1], unsortedStarts[o2]);
+            }
+
+        });
+
+        this.blueprints = new BlueprintBean[size];
+        this.starts = new long[size];
+        this.ends = new long[size];
+        this.latestEnding = new int[size];
+        this.contents = new byte[size][];
+        for (int i = 0; i < size; i++) {
+            final BlueprintBean bean = sorted.get(order.get(i));
+            blueprints[i] = bean;
+            starts[i] = unsortedStarts[order.get(i)];
+            ends[i] = millis(bean.getValidUntil());
+            latestEnding[i] = i > 0 && ends[latestEnding[i - 1]] >= ends[i] ? latestEnding[i - 1] : i;
+        }
+    }
+
+    // same as joda's Interval, where a missing instant stands for now
+    private long millis(DateTime dateTime) {
+        return dateTime == null ? now : dateTime.getMillis();
+    }
+
+    public int size() {
+        return blueprints.length;
+    }
+
+    public byte[] find(DateTime validFrom, DateTime validUntil) {
+        final int match = overlapping(millis(validFrom), millis(validUntil));
+        if (match < 0) {
+            return null;
+        }
+        if (contents[match] == null) {
+            contents[match] = blueprints[match].getContent(pack);
+        }
+        return contents[match];
+    }
+
+    private int overlapping(long from, long until) {
+        // last blueprint starting before the range ends
+        int low = 0;
+        int high = starts.length - 1;
+        int last = -1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            if (starts[middle] < until) {
+                last = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (last < 0) {
+            return -1;
+        }
+        final int candidate = latestEnding[last];
+        return ends[candidate] > from ? candidate : -1;
+    }
+
+}
@@ -0,0 +1,157 @@
+package org.fenixedu.spaces.migration;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.reflect.TypeToken;
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Side file holding each distinct blueprint once, keyed by the sha1 of its content. The json exports only carry the hash.
+ */
+final class BlueprintPack {
+
+    static final String PACK_FILENAME = "blueprints.pack";
+    static final String INDEX_FILENAME = "blueprints.idx.json";
+
+    private BlueprintPack() {
+    }
+
+    private static class Entry {
+        public long offset;
+        public int length;
+
+        public Entry(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    public static String hash(byte[] content) {
+        return Hashing.sha1().hashBytes(content).toString();
+    }
+
+    public static boolean exists(File dir) {
+        return new File(dir, INDEX_FILENAME).exists();
+    }
+
+    public static class Writer implements Closeable {
+
+        private final File dir;
+        private final OutputStream out;
+        private final Map<String, Entry> index = new HashMap<>();
+        private long position = 0;
+        private int references = 0;
+
+        public Writer(File dir) throws IOException {
+            this.dir = dir;
+            this.out = new BufferedOutputStream(new FileOutputStream(new File(dir, PACK_FILENAME)));
+        }
+
+        public synchronized String put(byte[] content) throws IOException {
+            final String hash = hash(content);
+            if (!index.containsKey(hash)) {
+                out.write(content);
+                index.put(hash, new Entry(position, content.length));
+                position += content.length;
+            }
+            references++;
+            return hash;
+        }
+
+        public synchronized int getStored() {
+            return index.size();
+        }
+
+        public synchronized int getReferences() {
+            return references;
+        }
+
+        public synchronized long getBytes() {
+            return position;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            out.close();
+            try (JsonWriter writer =
+                    new JsonWriter(new OutputStreamWriter(new FileOutputStream(new File(dir, INDEX_FILENAME)), Charsets.UTF_8))) {
+                new Gson().toJson(index, new TypeToken<Map<String, Entry>>() {
+                }.getType(), writer);
+            }
+        }
+    }
+
+    public static class Reader implements Closeable {
+
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final ByteBuffer mapped;
+        private final Map<String, Entry> index;
+
+        public Reader(File dir) throws IOException {
+            try (JsonReader reader =
+                    new JsonReader(new InputStreamReader(new FileInputStream(new File(dir, INDEX_FILENAME)), Charsets.UTF_8))) {
+                this.index = new Gson().fromJson(reader, new TypeToken<Map<String, Entry>>() {
+                }.getType());
+            }
+            this.file = new RandomAccessFile(new File(dir, PACK_FILENAME), "r");
+            this.channel = file.getChannel();
+            // a single mapping is limited to 2GB, bigger packs are mapped blob by blob
+            this.mapped = channel.size() <= Integer.MAX_VALUE ? channel.map(MapMode.READ_ONLY, 0, channel.size()) : null;
+        }
+
+        public boolean contains(String hash) {
+            return index.containsKey(hash);
+        }
+
+        public byte[] get(String hash) {
+            final Entry entry = index.get(hash);
+            if (entry == null) {
+                throw new IllegalArgumentException("blueprint doesnt exist in pack: " + hash);
+            }
+            final byte[] content = new byte[entry.length];
+            try {
+                final ByteBuffer region;
+                if (mapped != null) {
+                    region = mapped.duplicate();
+                    region.position((int) entry.offset);
+                } else {
+                    region = channel.map(MapMode.READ_ONLY, entry.offset, entry.length);
+                }
+                region.get(content);
+            } catch (IOException e) {
+                throw new Error(e);
+            }
+            return content;
+        }
+
+        public int size() {
+            return index.size();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+            file.close();
+        }
+    }
+
+}
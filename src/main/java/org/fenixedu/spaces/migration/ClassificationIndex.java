@@ -0,0 +1,128 @@
+package org.fenixedu.spaces.migration;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.fenixedu.spaces.domain.SpaceClassification;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Space classifications by absolute code, by code without leading zeros and by legacy space type. Built once after the
+ * classifications are imported and shared, read only, by every import worker.
+ */
+class ClassificationIndex {
+
+    private final Map<String, SpaceClassification> byCode;
+    private final Map<String, SpaceClassification> byType;
+    // legacy codes seen in the input, resolved once through their normalized form
+    private final ConcurrentMap<String, SpaceClassification> aliases = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private ClassificationIndex(Map<String, SpaceClassification> byCode, Map<String, SpaceClassification> byType) {
+        this.byCode = byCode;
+        this.byType = byType;
+    }
+
+    public static ClassificationIndex build() {
+        final Map<String, SpaceClassification> byCode = new HashMap<>();
+        for (SpaceClassification classification : SpaceClassification.all()) {
+            byCode.put(classification.getAbsoluteCode(), classification);
+        }
+        for (SpaceClassification classification : SpaceClassification.all()) {
+            final String normalized = normalize(classification.getAbsoluteCode());
+            if (!byCode.containsKey(normalized)) {
+                byCode.put(normalized, classification);
+            }
+        }
+
+        final Map<String, SpaceClassification> byType = new HashMap<>();
+        putType(byType, byCode, "Campus", "11.3");
+        putType(byType, byCode, "RoomSubdivision", "11.4");
+        putType(byType, byCode, "Building", "11.5");
+        putType(byType, byCode, "Floor", "11.6");
+
+        return new ClassificationIndex(ImmutableMap.copyOf(byCode), ImmutableMap.copyOf(byType));
+    }
+
+    private static void putType(Map<String, SpaceClassification> byType, Map<String, SpaceClassification> byCode, String type,
+            String code) {
+        final SpaceClassification classification = byCode.get(code);
+        if (classification != null) {
+            byType.put(type, classification);
+        }
+    }
+
+    /**
+     * Removes one leading zero from each part of the code, so 03.06 becomes 3.6.
+     */
+    public static String normalize(String code) {
+        final StringBuilder builder = new StringBuilder(code.length());
+        boolean partStart = true;
+        for (int i = 0; i < code.length(); i++) {
+            final char c = code.charAt(i);
+            if (!(partStart && c == '0')) {
+                builder.append(c);
+            }
+            partStart = c == '.';
+        }
+        return builder.toString();
+    }
+
+    public SpaceClassification getByCode(String code) {
+        return count(findByCode(code));
+    }
+
+    public SpaceClassification getByType(String type) {
+        return count(findByType(type));
+    }
+
+    /**
+     * Same as getByCode, without counting the lookup, for checks that shouldn't show in the hit and miss counts.
+     */
+    public SpaceClassification findByCode(String code) {
+        SpaceClassification classification = byCode.get(code);
+        if (classification == null) {
+            classification = aliases.get(code);
+        }
+        if (classification == null) {
+            classification = byCode.get(normalize(code));
+            if (classification != null) {
+                aliases.putIfAbsent(code, classification);
+            }
+        }
+        return classification;
+    }
+
+    public SpaceClassification findByType(String type) {
+        return byType.get(type);
+    }
+
+    private SpaceClassification count(SpaceClassification classification) {
+        if (classification == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return classification;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("classification index with %d codes, %d types, %d aliases: %d hits, %d misses", byCode.size(),
+                byType.size(), aliases.size(), hits.get(), misses.get());
+    }
+
+}
@@ -1,6 +1,13 @@
 package org.fenixedu.spaces.migration;
 
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.sourceforge.fenixedu.domain.resource.ResourceAllocation;
 import net.sourceforge.fenixedu.domain.space.LessonInstanceOccupationBridge;
@@ -10,24 +17,203 @@ import net.sourceforge.fenixedu.domain.space.LessonSpaceOccupation;
 import net.sourceforge.fenixedu.domain.space.WrittenEvaluationOccupationBridge;
 import net.sourceforge.fenixedu.domain.space.WrittenEvaluationSpaceOccupation;
 
-import org.fenixedu.bennu.core.domain.Bennu;
 import org.fenixedu.bennu.scheduler.custom.CustomTask;
+import org.fenixedu.spaces.domain.occupation.Occupation;
+import org.fenixedu.spaces.migration.ResourceAllocationClassifier.AllocationConsumer;
+import org.fenixedu.spaces.migration.ResourceAllocationClassifier.Kind;
+
+import pt.ist.fenixframework.Atomic.TxMode;
+import pt.ist.fenixframework.CallableWithoutException;
+import pt.ist.fenixframework.FenixFramework;
 
 public class CreateEventSpaceOccupationsBridgesTask extends CustomTask {
 
+    private static final boolean CHUNKED = true;
+    private static final int MIN_CHUNK_SIZE = 50;
+    private static final int MAX_CHUNK_SIZE = 5000;
+    private static final long TARGET_COMMIT_MILLIS = 2000;
+    private static final long TARGET_WRITE_SET = 20000;
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    private final AtomicInteger created = new AtomicInteger();
+    private final MigrationMetrics metrics = new MigrationMetrics("bridges");
+    private final BatchSizeController batches = new BatchSizeController(MIN_CHUNK_SIZE, MAX_CHUNK_SIZE, 1000,
+            TARGET_COMMIT_MILLIS, TARGET_WRITE_SET, metrics, "bridges");
+
+    @Override
+    public TxMode getTxMode() {
+        return CHUNKED ? TxMode.READ : TxMode.WRITE;
+    }
+
     @Override
     public void runTask() throws Exception {
-        final Set<ResourceAllocation> resourceAllocationsSet = Bennu.getInstance().getResourceAllocationsSet();
-        for (ResourceAllocation resourceAllocation : resourceAllocationsSet) {
-            if (resourceAllocation.isEventSpaceOccupation()) {
-                if (resourceAllocation.isLessonInstanceSpaceOccupation()) {
-                    new LessonInstanceOccupationBridge((LessonInstanceSpaceOccupation) resourceAllocation);
-                } else if (resourceAllocation.isLessonSpaceOccupation()) {
-                    new LessonOccupationBridge((LessonSpaceOccupation) resourceAllocation);
-                } else if (resourceAllocation.isWrittenEvaluationSpaceOccupation()) {
-                    new WrittenEvaluationOccupationBridge((WrittenEvaluationSpaceOccupation) resourceAllocation);
+        try {
+            if (CHUNKED) {
+                createBridgesInChunks();
+            } else {
+                createBridges();
+            }
+        } finally {
+            metrics.count("bridges.created", created.get());
+            taskLog("%s", metrics);
+            output(MigrationMetrics.FILENAME, metrics.report());
+        }
+    }
+
+    private void createBridges() {
+        final ResourceAllocationClassifier classifier = new ResourceAllocationClassifier();
+        classifier.register(new AllocationConsumer() {
+
+            @Override
+            public void accept(Kind kind, ResourceAllocation resourceAllocation) {
+                final long start = System.nanoTime();
+                createBridge(kind, resourceAllocation);
+                metrics.time("bridges.write", start);
+                created.incrementAndGet();
+            }
+
+        }, Kind.LESSON_INSTANCE, Kind.LESSON, Kind.WRITTEN_EVALUATION);
+        scan(classifier);
+    }
+
+    private void createBridgesInChunks() throws InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            final ChunkingConsumer consumer = new ChunkingConsumer(executor);
+            final ResourceAllocationClassifier classifier = new ResourceAllocationClassifier();
+            classifier.register(consumer, Kind.LESSON_INSTANCE, Kind.LESSON, Kind.WRITTEN_EVALUATION);
+            scan(classifier);
+            consumer.flush();
+
+            final List<Future<Integer>> futures = consumer.futures;
+            taskLog("%d allocations already have a bridge, %d chunks to create\n", consumer.skipped, futures.size());
+
+            int failed = 0;
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    failed++;
+                    taskLog("chunk %d failed: %s\n", i, e.getCause());
                 }
+                if (i % 10 == 0) {
+                    taskLog("%d/%d chunks done, %d bridges created\n", i + 1, futures.size(), created.get());
+                }
+            }
+            metrics.count("bridges.skipped", consumer.skipped);
+            metrics.count("bridges.failedChunks", failed);
+            taskLog("created %d bridges, %d chunks failed\n", created.get(), failed);
+            taskLog("%s\n", batches);
+            if (failed > 0) {
+                throw new RuntimeException(failed + " chunks failed, run the task again to resume");
             }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void scan(ResourceAllocationClassifier classifier) {
+        final long start = System.nanoTime();
+        classifier.run();
+        metrics.time("allocations.scan", start);
+        metrics.count("allocations.scanned", classifier.getScanned());
+        taskLog("%s\n", classifier);
+    }
+
+    private class ChunkingConsumer implements AllocationConsumer {
+
+        private final ExecutorService executor;
+        private final List<Future<Integer>> futures = new ArrayList<>();
+        private List<String> chunk = new ArrayList<>();
+        private int skipped = 0;
+
+        public ChunkingConsumer(ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public void accept(Kind kind, ResourceAllocation resourceAllocation) {
+            if (hasBridge(kind, resourceAllocation)) {
+                skipped++;
+                return;
+            }
+            chunk.add(resourceAllocation.getExternalId());
+            if (chunk.size() >= batches.nextBatchSize()) {
+                flush();
+            }
+        }
+
+        public void flush() {
+            if (!chunk.isEmpty()) {
+                futures.add(executor.submit(new BridgeChunk(chunk)));
+                chunk = new ArrayList<>();
+            }
+        }
+    }
+
+    private class BridgeChunk implements Callable<Integer> {
+
+        private final List<String> allocations;
+
+        public BridgeChunk(List<String> allocations) {
+            this.allocations = allocations;
+        }
+
+        @Override
+        public Integer call() {
+            final int count = batches.commit(allocations.size(), allocations.size(), new CallableWithoutException<Integer>() {
+
+                @Override
+                public Integer call() {
+                    int count = 0;
+                    for (String externalId : allocations) {
+                        final ResourceAllocation resourceAllocation = FenixFramework.getDomainObject(externalId);
+                        final Kind kind = ResourceAllocationClassifier.classify(resourceAllocation);
+                        if (kind != null && !hasBridge(kind, resourceAllocation)) {
+                            createBridge(kind, resourceAllocation);
+                            count++;
+                        }
+                    }
+                    return count;
+                }
+
+            });
+            metrics.count("bridges.records", allocations.size());
+            created.addAndGet(count);
+            return count;
+        }
+    }
+
+    private static boolean hasBridge(Kind kind, ResourceAllocation resourceAllocation) {
+        return kind == Kind.GENERIC_EVENT || getBridge(kind, resourceAllocation) != null;
+    }
+
+    static Occupation getBridge(Kind kind, ResourceAllocation resourceAllocation) {
+        switch (kind) {
+        case LESSON_INSTANCE:
+            return ((LessonInstanceSpaceOccupation) resourceAllocation).getLessonInstanceOccupationBridge();
+        case LESSON:
+            return ((LessonSpaceOccupation) resourceAllocation).getLessonOccupationBridge();
+        case WRITTEN_EVALUATION:
+            return ((WrittenEvaluationSpaceOccupation) resourceAllocation).getWrittenEvaluationOccupationBridge();
+        default:
+            return null;
+        }
+    }
+
+    private static void createBridge(Kind kind, ResourceAllocation resourceAllocation) {
+        switch (kind) {
+        case LESSON_INSTANCE:
+            new LessonInstanceOccupationBridge((LessonInstanceSpaceOccupation) resourceAllocation);
+            break;
+        case LESSON:
+            new LessonOccupationBridge((LessonSpaceOccupation) resourceAllocation);
+            break;
+        case WRITTEN_EVALUATION:
+            new WrittenEvaluationOccupationBridge((WrittenEvaluationSpaceOccupation) resourceAllocation);
+            break;
+        default:
+            break;
         }
     }
 }
@@ -0,0 +1,90 @@
+package org.fenixedu.spaces.migration;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import net.sourceforge.fenixedu.util.ConnectionManager;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Every domain class id of FF$DOMAIN_CLASS_INFO, read in a single query. It is immutable once loaded, so parallel workers
+ * can share it, and translating a legacy oid is plain arithmetic on longs.
+ */
+final class DomainClassRegistry {
+
+    private final ImmutableMap<String, Long> classIds;
+
+    private DomainClassRegistry(ImmutableMap<String, Long> classIds) {
+        this.classIds = classIds;
+    }
+
+    /**
+     * Must run inside a transaction, as it uses its connection.
+     */
+    public static DomainClassRegistry load() {
+        final ImmutableMap.Builder<String, Long> classIds = ImmutableMap.builder();
+        Connection connection = ConnectionManager.getCurrentSQLConnection();
+        Statement statement = null;
+        try {
+            statement = connection.createStatement();
+            ResultSet rs = statement.executeQuery("select DOMAIN_CLASS_NAME, DOMAIN_CLASS_ID from FF$DOMAIN_CLASS_INFO");
+            while (rs.next()) {
+                classIds.put(rs.getString("DOMAIN_CLASS_NAME"), rs.getLong("DOMAIN_CLASS_ID"));
+            }
+            return new DomainClassRegistry(classIds.build());
+        } catch (SQLException e) {
+            throw new Error(e);
+        } finally {
+            try {
+                if (statement != null) {
+                    statement.close();
+                }
+            } catch (SQLException e) {
+                throw new Error(e);
+            }
+        }
+    }
+
+    public long getClassId(Class<?> type) {
+        final Long classId = classIds.get(type.getName());
+        if (classId == null) {
+            throw new IllegalArgumentException("no domain class id for " + type.getName());
+        }
+        return classId;
+    }
+
+    public int size() {
+        return classIds.size();
+    }
+
+    /**
+     * The oid a legacy object gets in the new system: the class id in the upper half and the low 16 bits of the legacy oid,
+     * which is what getNewSpaceId always computed (its shift of an int by 32 leaves the value unchanged).
+     */
+    public static long translate(long classId, long legacyOid) {
+        return (classId << 32) + (int) (legacyOid & 0x0000FFFF);
+    }
+
+    public static String translate(long classId, String legacyExternalId) {
+        return Long.toString(translate(classId, Long.parseLong(legacyExternalId)));
+    }
+
+    /**
+     * Translates oids[from, to) in place.
+     */
+    public static void translateAll(long classId, long[] oids, int from, int to) {
+        final long high = classId << 32;
+        for (int i = from; i < to; i++) {
+            oids[i] = high + (int) (oids[i] & 0x0000FFFF);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "domain classes: " + classIds.size();
+    }
+
+}
@@ -0,0 +1,155 @@
+package org.fenixedu.spaces.migration;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * Local journal of the chunks already committed for a given input. Each committed chunk is appended and synced to disk
+ * with the range of records it covered, so a restarted import can skip those records even if it chunks the input
+ * differently. A journal written for a different input is discarded.
+ */
+class ImportCheckpoint implements Closeable {
+
+    private static final String HEADER = "input ";
+
+    private final File journal;
+    private final String inputHash;
+    private final TreeMap<Integer, Integer> committed = new TreeMap<>();
+    private int chunks = 0;
+    private final boolean resumed;
+    private final FileOutputStream stream;
+    private final Writer writer;
+
+    public ImportCheckpoint(File journal, List<File> inputs) throws IOException {
+        this.journal = journal;
+        this.inputHash = hash(inputs);
+        this.resumed = journal.exists() && load();
+        this.stream = new FileOutputStream(journal, resumed);
+        this.writer = new OutputStreamWriter(stream, Charsets.UTF_8);
+        if (!resumed) {
+            writer.write(HEADER + inputHash + "\n");
+            sync();
+        }
+    }
+
+    private static String hash(List<File> inputs) throws IOException {
+        final Hasher hasher = Hashing.sha1().newHasher();
+        for (File input : inputs) {
+            hasher.putBytes(Files.hash(input, Hashing.sha1()).asBytes());
+        }
+        return hasher.hash().toString();
+    }
+
+    private boolean load() throws IOException {
+        final List<String> lines = Files.readLines(journal, Charsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals(HEADER + inputHash)) {
+            return false;
+        }
+        for (String line : lines.subList(1, lines.size())) {
+            // a partially written last line means that chunk was not recorded
+            final String[] parts = line.split(" ");
+            if (parts.length == 3) {
+                addRange(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+                chunks++;
+            }
+        }
+        return true;
+    }
+
+    private void addRange(int firstRecord, int records) {
+        if (records <= 0) {
+            return;
+        }
+        int start = firstRecord;
+        int end = firstRecord + records;
+        final Entry<Integer, Integer> lower = committed.floorEntry(start);
+        if (lower != null && lower.getValue() >= start) {
+            start = lower.getKey();
+            end = Math.max(end, lower.getValue());
+        }
+        Entry<Integer, Integer> next;
+        while ((next = committed.ceilingEntry(start)) != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            committed.remove(next.getKey());
+        }
+        committed.put(start, end);
+    }
+
+    public synchronized boolean isCommitted(int record) {
+        final Entry<Integer, Integer> range = committed.floorEntry(record);
+        return range != null && range.getValue() > record;
+    }
+
+    public synchronized int getCommittedCount() {
+        return chunks;
+    }
+
+    /**
+     * Whether a previous run over the same input left this journal, so a chunk it committed may be missing from it.
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * The record after the last committed one, zero when none was.
+     */
+    public synchronized int getCommittedEnd() {
+        return committed.isEmpty() ? 0 : committed.lastEntry().getValue();
+    }
+
+    public String getInputHash() {
+        return inputHash;
+    }
+
+    public synchronized void markCommitted(int chunk, int firstRecord, int records) throws IOException {
+        writer.write(chunk + " " + firstRecord + " " + records + "\n");
+        sync();
+        addRange(firstRecord, records);
+        chunks++;
+    }
+
+    /**
+     * Records a chunk made of scattered records, given in increasing order, as one journal line per contiguous run.
+     */
+    public synchronized void markCommitted(int chunk, List<Integer> records) throws IOException {
+        int i = 0;
+        while (i < records.size()) {
+            final int first = records.get(i);
+            int run = 1;
+            while (i + run < records.size() && records.get(i + run) == first + run) {
+                run++;
+            }
+            writer.write(chunk + " " + first + " " + run + "\n");
+            i += run;
+        }
+        sync();
+        for (Integer record : records) {
+            addRange(record, 1);
+        }
+        chunks++;
+    }
+
+    private void sync() throws IOException {
+        writer.flush();
+        stream.getFD().sync();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+}
@@ -1,27 +1,34 @@
 package org.fenixedu.spaces.migration;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.math.BigDecimal;
-import java.sql.Connection;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import net.sourceforge.fenixedu.util.ConnectionManager;
+import net.sourceforge.fenixedu.domain.resource.ResourceAllocation;
 
 import org.fenixedu.bennu.core.domain.Bennu;
-import org.fenixedu.bennu.core.domain.groups.PersistentGroup;
-import org.fenixedu.bennu.core.groups.Group;
-import org.fenixedu.bennu.core.groups.NobodyGroup;
 import org.fenixedu.bennu.scheduler.custom.CustomTask;
 import org.fenixedu.commons.i18n.LocalizedString;
 import org.fenixedu.spaces.domain.Information;
@@ -30,8 +37,12 @@ import org.fenixedu.spaces.domain.Space;
 import org.fenixedu.spaces.domain.SpaceClassification;
 import org.fenixedu.spaces.domain.occupation.Occupation;
 import org.fenixedu.spaces.domain.occupation.config.ExplicitConfig;
+import org.fenixedu.spaces.migration.AccessGroupResolver.AccessGroups;
+import org.fenixedu.spaces.migration.BinaryRecordReader.RecordDecoder;
+import org.fenixedu.spaces.migration.ResourceAllocationClassifier.Kind;
 import org.fenixedu.spaces.ui.InformationBean;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.joda.time.Interval;
 import org.joda.time.YearMonthDay;
 import org.joda.time.format.DateTimeFormat;
@@ -42,23 +53,26 @@ import org.slf4j.LoggerFactory;
 import pt.ist.fenixframework.Atomic.TxMode;
 import pt.ist.fenixframework.CallableWithoutException;
 import pt.ist.fenixframework.FenixFramework;
+import pt.ist.fenixframework.atomic.AtomicInstance;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Function;
-import com.google.common.base.Joiner;
-import com.google.common.base.Splitter;
+import com.google.common.base.Objects;
+import com.google.common.base.Predicate;
 import com.google.common.base.Strings;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.io.BaseEncoding;
-import com.google.common.reflect.TypeToken;
+import com.google.common.primitives.Ints;
 import com.google.gson.Gson;
 import com.google.gson.JsonIOException;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonSyntaxException;
-import com.google.gson.stream.JsonReader;
 
 @SuppressWarnings("unused")
 public class ImportSpacesTask extends CustomTask {
@@ -71,10 +85,44 @@ public class ImportSpacesTask extends CustomTask {
     Multimap<String, MetadataSpec> codeToMetadataSpecMap;
 
     private static final String IMPORT_URL = "/home/sfbs/Documents/fenix-spaces/import/most_recent";
-    private static final String EVENT_OCCUPATIONS_FILEPATH = IMPORT_URL + "/event_space_occupations.json";
-    private static final String OCCUPATIONS_FILEPATH = IMPORT_URL + "/occupations.json";
-    private static final String CLASSIFICATIONS_FILEPATH = IMPORT_URL + "/classifications.json";
-    private static final String SPACES_FILEPATH = IMPORT_URL + "/spaces.json";
+    private static final MigrationFormat FORMAT = MigrationFormat.JSON;
+    private static final boolean COMPRESSED = false;
+    private static final String EVENT_OCCUPATIONS_FILEPATH = importFilepath("event_space_occupations");
+    private static final String OCCUPATIONS_FILEPATH = importFilepath("occupations");
+    private static final String CLASSIFICATIONS_FILEPATH = importFilepath("classifications");
+    private static final String SPACES_FILEPATH = importFilepath("spaces");
+    private static final String SPACES_MANIFEST_FILEPATH = IMPORT_URL + "/spaces-manifest.json";
+    private static final String SPACES_CHECKPOINT_FILEPATH = IMPORT_URL + "/spaces.checkpoint";
+    private static final String OCCUPATIONS_CHECKPOINT_FILEPATH = IMPORT_URL + "/occupations.checkpoint";
+    private static final String EVENT_OCCUPATIONS_CHECKPOINT_FILEPATH = IMPORT_URL + "/event_space_occupations.checkpoint";
+    private static final String SPACES_DELTA_FILEPATH = IMPORT_URL + "/spaces-delta.json";
+    private static final String SPACES_CREATED_FILEPATH = importFilepath("spaces-created");
+    // these outlive each export, so a space created or applied by one run is recognized by the next ones
+    private static final String SPACE_IDS_FILEPATH = IMPORT_URL + "/../space-ids.map";
+    // ids written by each creating transaction right before it commits, see recoverPendingSpaceIds
+    private static final String SPACE_IDS_PENDING_FILEPATH = IMPORT_URL + "/../space-ids.pending";
+    // each digest is recorded with the oid of the space it was applied to, and only trusted while that space exists, so
+    // the journal of one database does not make an import into another skip its spaces
+    private static final String SPACE_DIGESTS_FILEPATH = IMPORT_URL + "/../space-digests.map";
+    // bump when the way beans are applied changes, so that every space is applied again
+    private static final int DIGEST_VERSION = 1;
+
+    private static final int MIN_CHUNK_SIZE = 50;
+    private static final int MAX_CHUNK_SIZE = 5000;
+    private static final long TARGET_COMMIT_MILLIS = 2000;
+    private static final long TARGET_WRITE_SET = 20000;
+
+    private static final boolean CONCURRENT = false;
+    // check every input record before the first write and stop on any problem
+    private static final boolean VALIDATE = true;
+    // fresh install: create every space of the input, level by level, instead of updating already migrated ones
+    private static final boolean CREATE_BY_LEVEL = false;
+    // the occupation steps also need their input file, without it they are skipped
+    private static final boolean IMPORT_OCCUPATIONS = true;
+    private static final boolean IMPORT_EVENT_OCCUPATIONS = true;
+    private static final String VALIDATION_FILENAME = "validation.json";
+    private static final String DEFAULT_ROOM_CLASSIFICATION = "3.6"; //Apoio ao Ensino - Outros
+    private static final int IMPORT_THREADS = Runtime.getRuntime().availableProcessors();
 
     @Override
     public TxMode getTxMode() {
@@ -133,15 +181,12 @@ public class ImportSpacesTask extends CustomTask {
 
     private void importClassifications(Gson gson) {
         taskLog("Import classification from %s \n", CLASSIFICATIONS_FILEPATH);
-        try {
-            File file = new File(CLASSIFICATIONS_FILEPATH);
-            List<ClassificationBean> classificationJson;
-            classificationJson = gson.fromJson(new JsonReader(new FileReader(file)), new TypeToken<List<ClassificationBean>>() {
-            }.getType());
-            for (ClassificationBean bean : classificationJson) {
-                create(null, bean);
-            }
-        } catch (JsonIOException | JsonSyntaxException | FileNotFoundException e) {
+        try (RecordReader<ClassificationBean> reader =
+                openReader(gson, "classifications", ClassificationBean.class, classificationDecoder, CLASSIFICATIONS_FILEPATH)) {
+            while (reader.hasNext()) {
+                create(null, reader.next());
+            }
+        } catch (JsonIOException | JsonSyntaxException | IOException e) {
             e.printStackTrace();
         }
 
@@ -189,6 +234,12 @@ public class ImportSpacesTask extends CustomTask {
         spaceClassification.setMetadataSpecs(codeToMetadataSpecMap.get(code));
     }
 
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormat.forPattern("dd/MM/yyyy");
+
+    static DateTime parseDate(String date) {
+        return date == null ? null : DATE_FORMAT.parseDateTime(date);
+    }
+
     private static String dealWithDates(YearMonthDay yearMonthDay) {
         return yearMonthDay == null ? null : yearMonthDay.toString("dd/MM/yyyy");
     }
@@ -216,7 +267,7 @@ public class ImportSpacesTask extends CustomTask {
         }
     }
 
-    private static class ImportOccupationBean {
+    static class ImportOccupationBean {
 
         public String description;
         public String title;
@@ -229,6 +280,12 @@ public class ImportSpacesTask extends CustomTask {
         public Boolean sunday;
         public Set<IntervalBean> intervals;
         public Set<String> spaces;
+        public Boolean recurrent;
+        public Set<IntervalBean> excluded;
+        // zone of the recurrence rule, exports without it were expanded in the default zone
+        public String zone;
+        private transient List<Interval> decodedIntervals;
+        private transient List<Interval> decodedExcluded;
 
         public ImportOccupationBean(String description, String title, String frequency, String beginDate, String endDate,
                 String beginTime, String endTime, Boolean saturday, Boolean sunday, Set<String> spaces,
@@ -247,20 +304,32 @@ public class ImportSpacesTask extends CustomTask {
             this.intervals = intervals;
         }
 
+        /**
+         * The explicit intervals, or for recurrent occupations the expansion of their rule corrected by the exceptions.
+         */
         public List<Interval> getIntervals() {
-            return FluentIterable.from(intervals).transform(new Function<IntervalBean, Interval>() {
-
-                private final DateTimeFormatter dateTimeFormat = DateTimeFormat.forPattern("dd/MM/yyyy HH:mm:ss");
+            final List<Interval> explicit = decodedIntervals != null ? decodedIntervals : parseIntervals(intervals);
+            if (!Boolean.TRUE.equals(recurrent)) {
+                return explicit;
+            }
+            final OccupationRecurrence recurrence =
+                    OccupationRecurrence.parse(frequency, beginDate, endDate, beginTime, endTime, saturday, sunday,
+                            zone == null ? DateTimeZone.getDefault() : DateTimeZone.forID(zone));
+            if (recurrence == null) {
+                throw new RuntimeException("occupation " + title + " has an invalid recurrence");
+            }
+            return recurrence.apply(decodedExcluded != null ? decodedExcluded : parseIntervals(excluded), explicit);
+        }
+    }
 
-                @Override
-                public Interval apply(IntervalBean input) {
-                    final DateTime start = dateTimeFormat.parseDateTime(input.start);
-                    final DateTime end = dateTimeFormat.parseDateTime(input.end);
-                    return new Interval(start, end);
-                }
+    private static final DateTimeFormatter INTERVAL_FORMAT = DateTimeFormat.forPattern("dd/MM/yyyy HH:mm:ss");
 
-            }).toList();
+    private static List<Interval> parseIntervals(Set<IntervalBean> intervals) {
+        final List<Interval> result = new ArrayList<>(intervals.size());
+        for (IntervalBean interval : intervals) {
+            result.add(new Interval(INTERVAL_FORMAT.parseDateTime(interval.start), INTERVAL_FORMAT.parseDateTime(interval.end)));
         }
+        return result;
     }
 
     public class SpaceBean {
@@ -282,6 +351,41 @@ public class ImportSpacesTask extends CustomTask {
             public String validUntil;
             public String creationPerson;
             public String raw;
+            public String hash;
+            private transient DateTime validFromDate;
+            private transient DateTime validUntilDate;
+            private transient byte[] content;
+
+            public DateTime getValidFrom() {
+                return validFromDate != null ? validFromDate : parseDate(validFrom);
+            }
+
+            public DateTime getValidUntil() {
+                return validUntilDate != null ? validUntilDate : parseDate(validUntil);
+            }
+
+            /**
+             * The hash of the blueprint when its content has to be read from the pack, otherwise null.
+             */
+            String getPackedHash() {
+                return content == null && raw == null ? hash : null;
+            }
+
+            byte[] getContent(BlueprintPack.Reader pack) {
+                if (content != null) {
+                    return content;
+                }
+                if (raw != null) {
+                    return BaseEncoding.base64().decode(raw);
+                }
+                if (hash == null) {
+                    return null;
+                }
+                if (pack == null) {
+                    throw new RuntimeException("blueprint " + hash + " needs a blueprint pack");
+                }
+                return pack.get(hash);
+            }
         }
 
         public class SpaceInformationBean {
@@ -302,35 +406,73 @@ public class ImportSpacesTask extends CustomTask {
             public Boolean securityQuality;
             public String classificationCode;
             public String name;
-        }
+            private transient DateTime validFromDate;
+            private transient DateTime validUntilDate;
 
-        private DateTime dealWithDates(String datetime) {
-            if (datetime == null) {
-                return null;
+            public DateTime getValidFrom() {
+                return validFromDate != null ? validFromDate : parseDate(validFrom);
+            }
+
+            public DateTime getValidUntil() {
+                return validUntilDate != null ? validUntilDate : parseDate(validUntil);
             }
-            return DateTimeFormat.forPattern("dd/MM/yyyy").parseDateTime(datetime);
         }
 
-        public Set<InformationBean> beans() {
-            return FluentIterable.from(informations).transform(new Function<SpaceInformationBean, InformationBean>() {
+        List<String> getGroupIds() {
+            return Arrays.asList(occupationGroup, lessonOccupationsAccessGroup, writtenEvaluationOccupationsAccessGroup,
+                    managementSpaceGroup);
+        }
 
-                Map<String, String> typeToCode;
+        private DateTime dealWithDates(String datetime) {
+            return parseDate(datetime);
+        }
 
-                {
-                    typeToCode = new HashMap<>();
-                    typeToCode.put("Campus", "11.3");
-                    typeToCode.put("RoomSubdivision", "11.4");
-                    typeToCode.put("Building", "11.5");
-                    typeToCode.put("Floor", "11.6");
+        /**
+         * Stable digest of everything the import applies from this bean, the same whichever format it was read from.
+         */
+        String digest() {
+            final Hasher hasher = Hashing.sha1().newHasher().putInt(DIGEST_VERSION);
+            putValues(hasher, parentExternalId, externalId, examCapacity, normalCapacity, type, occupationGroup,
+                    managementSpaceGroup, lessonOccupationsAccessGroup, writtenEvaluationOccupationsAccessGroup);
+            final List<String> parts = new ArrayList<>();
+            if (informations != null) {
+                for (SpaceInformationBean info : informations) {
+                    parts.add(putValues(Hashing.sha1().newHasher(), info.capacity, info.blueprintNumber, info.getValidFrom(),
+                            info.getValidUntil(), info.emails, info.ageQuality, info.area, info.description,
+                            info.distanceFromSanitaryInstalationsQuality, info.doorNumber, info.heightQuality,
+                            info.identification, info.illuminationQuality, info.observations, info.securityQuality,
+                            info.classificationCode, info.name).hash().toString());
                 }
+            }
+            putSorted(hasher, parts);
+            parts.clear();
+            if (blueprints != null) {
+                for (BlueprintBean blueprint : blueprints) {
+                    String hash = blueprint.hash;
+                    if (hash == null) {
+                        final byte[] content = blueprint.getContent(null);
+                        // a blueprint without content gets a marker no content hash can be equal to
+                        hash = content != null ? BlueprintPack.hash(content) : "-";
+                    }
+                    parts.add(putValues(Hashing.sha1().newHasher(), blueprint.getValidFrom(), blueprint.getValidUntil(),
+                            blueprint.creationPerson, hash).hash().toString());
+                }
+            }
+            putSorted(hasher, parts);
+            return hasher.hash().toString();
+        }
+
+        public Set<InformationBean> beans(final ClassificationIndex classifications, final BlueprintPack.Reader pack) {
+            final BlueprintIndex blueprintIndex = new BlueprintIndex(blueprints, pack, System.currentTimeMillis());
+            return FluentIterable.from(informations).transform(new Function<SpaceInformationBean, InformationBean>() {
 
                 @Override
                 public InformationBean apply(SpaceInformationBean input) {
                     InformationBean bean = new InformationBean();
                     bean.setAllocatableCapacity(input.capacity);
                     bean.setBlueprintNumber(input.blueprintNumber);
-                    final DateTime validFrom = dealWithDates(input.validFrom);
-                    final DateTime validUntil = dealWithDates(input.validUntil);
+                    final DateTime validFrom = input.getValidFrom();
+                    final DateTime validUntil = input.getValidUntil();
                     bean.setValidFrom(validFrom);
                     bean.setValidUntil(validUntil);
                     bean.setArea(input.area);
@@ -338,9 +480,9 @@ public class ImportSpacesTask extends CustomTask {
                     String classificationCode = input.classificationCode;
                     if (type.equals("Room")) {
                         if (Strings.isNullOrEmpty(classificationCode)) {
-                            classificationCode = "3.6"; //Apoio ao Ensino - Outros
+                            classificationCode = DEFAULT_ROOM_CLASSIFICATION;
                         }
-                        bean.setClassification(getClassificationByCode(removeLeadingZeros(classificationCode)));
+                        bean.setClassification(getClassificationByCode(classificationCode));
                         bean.setMetadata(createMetadata(input));
                     } else {
                         bean.setClassification(getClassificationByType(type));
@@ -351,37 +493,17 @@ public class ImportSpacesTask extends CustomTask {
                 }
 
                 private byte[] getBlueprint(DateTime validFrom, DateTime validUntil) {
-                    for (BlueprintBean bean : blueprints) {
-                        final DateTime bFrom = dealWithDates(bean.validFrom);
-                        final DateTime bUntil = dealWithDates(bean.validUntil);
-                        if (new Interval(validFrom, validUntil).overlaps(new Interval(bFrom, bUntil))) {
-                            return BaseEncoding.base64().decode(bean.raw);
-                        }
-                    }
-                    return null;
-                }
-
-                private String removeLeadingZeros(String classificationCode) {
-                    List<String> parts = new ArrayList<>();
-                    for (String part : Splitter.on(".").split(classificationCode)) {
-                        if (part.startsWith("0")) {
-                            parts.add(part.substring(1));
-                        } else {
-                            parts.add(part);
-                        }
-                    }
-                    return Joiner.on(".").join(parts);
+                    return blueprintIndex.find(validFrom, validUntil);
                 }
 
                 private SpaceClassification getClassificationByType(String type) {
-                    final String classificationCode = typeToCode.get(type);
-                    return SpaceClassification.get(classificationCode);
+                    return classifications.getByType(type);
                 }
 
                 private SpaceClassification getClassificationByCode(String classificationCode) {
-                    final SpaceClassification spaceClassification = SpaceClassification.get(classificationCode);
+                    final SpaceClassification spaceClassification = classifications.getByCode(classificationCode);
                     if (spaceClassification == null) {
-                        throw new RuntimeException("code doesnt exist: " + classificationCode);
+                        throw new RuntimeException("code doesnt exist: " + ClassificationIndex.normalize(classificationCode));
                     }
                     return spaceClassification;
                 }
@@ -406,9 +528,17 @@ public class ImportSpacesTask extends CustomTask {
         }
     }
 
-    Map<SpaceBean, Space> beanToSpaceMap = new HashMap<>();
-    Map<String, SpaceBean> idToBeansMap = new HashMap<>();
-    List<SpaceBean> fromJson;
+    BlueprintPack.Reader blueprintPack;
+    ClassificationIndex classificationIndex;
+    DomainClassRegistry domainClasses;
+    long spaceClassId;
+    JournalMap spaceIds;
+    JournalMap spaceIdsPending;
+    JournalMap spaceDigests;
+    MigrationMetrics metrics;
+    final AtomicInteger appliedSpaces = new AtomicInteger();
+    final AtomicInteger skippedSpaces = new AtomicInteger();
+    final AccessGroupResolver accessGroupResolver = new AccessGroupResolver();
 
     private void doClassifications(final Gson gson) {
         FenixFramework.getTransactionManager().withTransaction(new CallableWithoutException<Void>() {
@@ -440,213 +570,1153 @@ public class ImportSpacesTask extends CustomTask {
     @Override
     public void runTask() throws Exception {
         Gson gson = new Gson();
+        metrics = new MigrationMetrics("import");
+        domainClasses = DomainClassRegistry.load();
+        spaceClassId = domainClasses.getClassId(Space.class);
+        taskLog("%s, space class id %d\n", domainClasses, spaceClassId);
         initMetadataSpecMap();
+        final long classificationsStart = System.nanoTime();
         doClassifications(gson);
-        processSpaces(gson);
-//        processOccupations(gson);
+        classificationIndex = ClassificationIndex.build();
+        metrics.time("classifications", classificationsStart);
+        final File importDir = new File(IMPORT_URL);
+        if (BlueprintPack.exists(importDir)) {
+            blueprintPack = new BlueprintPack.Reader(importDir);
+            taskLog("Using blueprint pack with %d blueprints\n", blueprintPack.size());
+        }
+        spaceIds = new JournalMap(new File(SPACE_IDS_FILEPATH));
+        spaceDigests = new JournalMap(new File(SPACE_DIGESTS_FILEPATH));
+        try {
+            recoverPendingSpaceIds();
+            final SpaceDeltaBean delta = readDelta(gson);
+            if (VALIDATE) {
+                validate(gson, delta != null);
+            }
+            if (delta != null) {
+                taskLog("Applying delta: %d unchanged, %d changed, %d created, %d deleted\n", delta.unchanged, delta.changed,
+                        delta.created, delta.deleted.size());
+                createSpaces(gson);
+            }
+            if (CREATE_BY_LEVEL) {
+                createSpacesByLevel(gson);
+            } else {
+                processSpaces(gson);
+            }
+            if (delta != null) {
+                deleteSpaces(delta.deleted);
+            }
+            if (shouldImport(IMPORT_OCCUPATIONS, "occupations", OCCUPATIONS_FILEPATH)) {
+                processOccupations(gson);
+            }
+            if (shouldImport(IMPORT_EVENT_OCCUPATIONS, "event space occupations", EVENT_OCCUPATIONS_FILEPATH)) {
+                processEventSpaceOccupations(gson);
+            }
+        } finally {
+            taskLog("%s\n", classificationIndex);
+            taskLog("%s\n", accessGroupResolver);
+            taskLog("Applied %d spaces, skipped %d unchanged\n", appliedSpaces.get(), skippedSpaces.get());
+            metrics.count("spaces.applied", appliedSpaces.get());
+            metrics.count("spaces.skipped", skippedSpaces.get());
+            taskLog("%s", metrics);
+            output(MigrationMetrics.FILENAME, metrics.report());
+            spaceIds.close();
+            spaceDigests.close();
+            if (spaceIdsPending != null) {
+                spaceIdsPending.close();
+            }
+            if (blueprintPack != null) {
+                blueprintPack.close();
+            }
+        }
     }
 
-    public void processOccupations(Gson gson) throws FileNotFoundException {
-        File file = new File(OCCUPATIONS_FILEPATH);
-        final List<ImportOccupationBean> fromJson =
-                gson.fromJson(new JsonReader(new FileReader(file)), new TypeToken<List<ImportOccupationBean>>() {
-                }.getType());
-
-        for (ImportOccupationBean importOccupationBean : fromJson) {
-            Set<Space> occupationSpaces = new HashSet<>();
-            for (String spaceId : importOccupationBean.spaces) {
-                final SpaceBean spaceBean = idToBeansMap.get(spaceId);
-                final Space e = beanToSpaceMap.get(spaceBean);
-                occupationSpaces.add(e);
+    /**
+     * A creating transaction records its new ids in the pending journal before it commits and in the id map only after, so
+     * a run that died in between leaves committed spaces that only the pending journal knows about. Those whose oid is a
+     * space of the database were committed and go to the id map, so they are not created again. The others belong to
+     * transactions that never committed. The journal then starts empty for this run.
+     */
+    private void recoverPendingSpaceIds() throws IOException {
+        final File file = new File(SPACE_IDS_PENDING_FILEPATH);
+        final Map<String, String> pending = new HashMap<>();
+        try (JournalMap journal = new JournalMap(file)) {
+            for (Map.Entry<String, String> entry : journal.snapshot().entrySet()) {
+                if (spaceIds.get(entry.getKey()) == null) {
+                    pending.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        final Set<String> missing = getMissingSpaces(pending.values());
+        final Map<String, String> recovered = new HashMap<>();
+        for (Map.Entry<String, String> entry : pending.entrySet()) {
+            if (!missing.contains(entry.getValue())) {
+                recovered.put(entry.getKey(), entry.getValue());
             }
+        }
+        if (!recovered.isEmpty()) {
+            spaceIds.putAll(recovered);
+            taskLog("Recovered %d spaces committed by an interrupted run\n", recovered.size());
+        }
+        if (!file.delete() && file.exists()) {
+            throw new IOException("can't delete " + file);
+        }
+        spaceIdsPending = new JournalMap(file);
+    }
 
-            final ExplicitConfig explicitConfig = new ExplicitConfig(new JsonObject(), importOccupationBean.getIntervals());
+    private boolean shouldImport(boolean enabled, String what, String filepath) {
+        if (!enabled) {
+            taskLog("Skipping %s, disabled\n", what);
+            return false;
+        }
+        if (!new File(filepath).exists()) {
+            taskLog("Skipping %s, %s doesn't exist\n", what, filepath);
+            return false;
+        }
+        return true;
+    }
 
-            final Occupation occupation =
-                    new Occupation(importOccupationBean.title, importOccupationBean.description, explicitConfig);
+    private static class SpaceDeltaBean {
+        public int unchanged;
+        public int changed;
+        public int created;
+        public List<String> deleted;
+    }
 
-            for (Space space : occupationSpaces) {
-                occupation.addSpace(space);
+    /**
+     * Checks all the space records on IMPORT_THREADS read only workers, writes the report and refuses to go on when any
+     * record has a problem, before a single write transaction is opened.
+     */
+    private void validate(Gson gson, boolean withCreated) throws IOException, InterruptedException {
+        final long start = System.nanoTime();
+        final List<String> filepaths = new ArrayList<>(getSpacesFilepaths(gson));
+        if (withCreated) {
+            filepaths.add(SPACES_CREATED_FILEPATH);
+        }
+        try (ImportValidator validator =
+                new ImportValidator(classificationIndex, DEFAULT_ROOM_CLASSIFICATION, blueprintPack, IMPORT_THREADS)) {
+            for (String filepath : filepaths) {
+                try (RecordReader<SpaceBean> reader = openReader(gson, "spaces", SpaceBean.class, spaceDecoder, filepath)) {
+                    validator.submit(filepath, reader);
+                }
             }
+            validator.finish(new Predicate<String>() {
+
+                @Override
+                public boolean apply(String externalId) {
+                    return FenixFramework.isDomainObjectValid(resolveSpace(externalId));
+                }
+
+            });
+            reportValidation(gson, validator, start);
         }
     }
 
-    public void processSpaces(Gson gson) throws FileNotFoundException {
-        File file = new File(SPACES_FILEPATH);
-        final List<SpaceBean> fromJson = gson.fromJson(new JsonReader(new FileReader(file)), new TypeToken<List<SpaceBean>>() {
-        }.getType());
+    private void reportValidation(Gson gson, ImportValidator validator, long start) {
+        metrics.time("validation", start);
+        metrics.count("validation.problems", validator.getProblems());
+        output(VALIDATION_FILENAME, validator.report(gson));
+        taskLog("%s\n", validator);
+        if (validator.getProblems() > 0) {
+            throw new RuntimeException(validator.getProblems() + " problems in the input, see " + VALIDATION_FILENAME);
+        }
+    }
 
-//        for (SpaceBean spaceBean : fromJson) {
-//            idToBeansMap.put(spaceBean.externalId, spaceBean);
-//        }
+    private SpaceDeltaBean readDelta(Gson gson) throws IOException {
+        if (!new File(SPACES_DELTA_FILEPATH).exists()) {
+            return null;
+        }
+        try (Reader reader = openImport(SPACES_DELTA_FILEPATH)) {
+            return gson.fromJson(reader, SpaceDeltaBean.class);
+        }
+    }
 
-        final List<List<SpaceBean>> partitions = Lists.partition(fromJson, 1000);
-        taskLog("Processing chunks of 1000, total : %d\n", partitions.size());
-        for (List<SpaceBean> partition : partitions) {
-            taskLog("Chunk with %d \n", partition.size());
-            processPartition(partition);
+    /**
+     * New spaces come ordered parents first, so by the time a space is created its parent was either created in an earlier
+     * batch, and recorded in the id map, or in the same one.
+     */
+    private void createSpaces(Gson gson) throws IOException {
+        final BatchSizeController batches = newBatchSizeController("spaces-created");
+        int spaces = 0;
+        try (RecordReader<SpaceBean> reader =
+                openReader(gson, "spaces", SpaceBean.class, spaceDecoder, SPACES_CREATED_FILEPATH)) {
+            while (reader.hasNext()) {
+                final List<SpaceBean> batch = batches.nextBatch(reader);
+                createBatch(batches, batch);
+                spaces += batch.size();
+            }
         }
+        taskLog("Created %d spaces\n", spaces);
     }
 
-    private void processPartition(final List<SpaceBean> partition) {
-        FenixFramework.getTransactionManager().withTransaction(new CallableWithoutException<Void>() {
+    /**
+     * Creates the spaces of every input file in one pass per depth of the tree: all the roots, then all their children and
+     * so on, each level in adaptive batches. A parent is therefore always committed, and in the id map, before any of its
+     * children is created, and a fresh install takes a few commits per level instead of one per space. Spaces already in
+     * the id map were created by a previous run and are skipped, so an interrupted run can just be started again.
+     *
+     * The depth of every record is kept, by file and position, from the pass that reads the parents, so each level pass
+     * decodes only the records of its level and skips the others, blueprints included, unparsed.
+     */
+    private void createSpacesByLevel(Gson gson) throws IOException {
+        final List<String> filepaths = getSpacesFilepaths(gson);
+        final List<int[]> recordDepths = new ArrayList<>(filepaths.size());
+        int levels = 0;
+        int spaces = 0;
+        {
+            final List<List<String>> order = new ArrayList<>();
+            final Map<String, Integer> depths = getDepths(readParents(gson, filepaths, order));
+            for (List<String> ids : order) {
+                final int[] fileDepths = new int[ids.size()];
+                for (int i = 0; i < fileDepths.length; i++) {
+                    fileDepths[i] = depths.get(ids.get(i));
+                    levels = Math.max(levels, fileDepths[i] + 1);
+                }
+                recordDepths.add(fileDepths);
+            }
+            spaces = depths.size();
+        }
+        taskLog("Creating %d spaces in %d levels\n", spaces, levels);
+
+        final BatchSizeController batches = newBatchSizeController("spaces-by-level");
+        for (int level = 0; level < levels; level++) {
+            final int depth = level;
+            int created = 0;
+            int skipped = 0;
+            for (int file = 0; file < filepaths.size(); file++) {
+                final int[] fileDepths = recordDepths.get(file);
+                if (!Ints.contains(fileDepths, depth)) {
+                    continue;
+                }
+                try (final RecordReader<SpaceBean> reader =
+                        openReader(gson, "spaces", SpaceBean.class, spaceDecoder, filepaths.get(file))) {
+                    final Iterator<SpaceBean> atDepth = new AbstractIterator<SpaceBean>() {
+
+                        private int record = 0;
+
+                        @Override
+                        protected SpaceBean computeNext() {
+                            while (record < fileDepths.length && reader.hasNext()) {
+                                if (fileDepths[record++] == depth) {
+                                    return reader.next();
+                                }
+                                reader.skip();
+                            }
+                            return endOfData();
+                        }
+
+                    };
+                    while (atDepth.hasNext()) {
+                        final List<SpaceBean> batch = new ArrayList<>();
+                        for (SpaceBean bean : batches.nextBatch(atDepth)) {
+                            if (spaceIds.get(bean.externalId) == null) {
+                                batch.add(bean);
+                            } else {
+                                skipped++;
+                            }
+                        }
+                        if (!batch.isEmpty()) {
+                            createBatch(batches, batch);
+                            created += batch.size();
+                        }
+                    }
+                }
+            }
+            taskLog("Level %d: created %d spaces, %d already created\n", level, created, skipped);
+        }
+        taskLog("%s\n", batches);
+    }
+
+    /**
+     * Creates the spaces in a single transaction, parents before children within the batch, and records their new ids and
+     * digests once it commits. The ids are also written to the pending journal from inside the transaction, right before
+     * it commits, so a crash before the id map write doesn't make the next run create them again. Spaces already created
+     * by a previous run are updated instead.
+     */
+    private void createBatch(BatchSizeController batches, final List<SpaceBean> batch) {
+        final Map<String, String> created = new HashMap<>();
+        final Map<String, String> digests = new HashMap<>();
+        long weight = 0;
+        final long digestStart = System.nanoTime();
+        for (SpaceBean bean : batch) {
+            digests.put(bean.externalId, bean.digest());
+            weight += weight(bean);
+        }
+        metrics.time("spaces.digest", digestStart);
+        batches.commit(batch.size(), weight, new CallableWithoutException<Void>() {
 
             @Override
             public Void call() {
-                for (final SpaceBean bean : partition) {
-                    process(bean);
-
+                created.clear();
+                final Map<String, Space> inBatch = new HashMap<>();
+                for (SpaceBean bean : batch) {
+                    if (spaceIds.get(bean.externalId) != null) {
+                        process(bean);
+                        continue;
+                    }
+                    Space parent = inBatch.get(bean.parentExternalId);
+                    if (parent == null && bean.parentExternalId != null) {
+                        parent = resolveSpace(bean.parentExternalId);
+                    }
+                    final Space space = innerCreate(parent, bean);
+                    inBatch.put(bean.externalId, space);
+                    created.put(bean.externalId, space.getExternalId());
+                }
+                try {
+                    spaceIdsPending.putAll(created);
+                } catch (IOException e) {
+                    throw new Error(e);
                 }
                 return null;
             }
-        });
-    }
 
-    private Space process(final SpaceBean spaceBean) {
-        if (spaceBean == null) {
-            return null;
+        });
+        spaceIds.putAll(created);
+        for (Map.Entry<String, String> entry : digests.entrySet()) {
+            entry.setValue(digestEntry(entry.getValue(), getSpaceId(entry.getKey())));
         }
-        return update((Space) FenixFramework.getDomainObject(getNewSpaceId(spaceBean.externalId)), spaceBean);
-//        if (!beanToSpaceMap.containsKey(spaceBean)) {
-//            beanToSpaceMap.put(spaceBean, create(process(idToBeansMap.get(spaceBean.parentExternalId)), spaceBean));
-//        }
-//        return beanToSpaceMap.get(spaceBean);
+        spaceDigests.putAll(digests);
+        appliedSpaces.addAndGet(batch.size());
     }
 
-    private Space create(final Space parent, final SpaceBean spaceBean) {
-        return FenixFramework.getTransactionManager().withTransaction(new CallableWithoutException<Space>() {
+    /**
+     * Deletes the spaces gone from the export and forgets their ids and digests, so a space that comes back later is
+     * created and applied again instead of being resolved to the deleted one.
+     */
+    private void deleteSpaces(final List<String> deleted) throws IOException {
+        final long start = System.nanoTime();
+        final int count = FenixFramework.getTransactionManager().withTransaction(new CallableWithoutException<Integer>() {
 
             @Override
-            public Space call() {
-                return innerCreate(parent, spaceBean);
+            public Integer call() {
+                int count = 0;
+                for (String externalId : deleted) {
+                    final Space space = resolveSpace(externalId);
+                    if (FenixFramework.isDomainObjectValid(space)) {
+                        space.delete();
+                        count++;
+                    }
+                }
+                return count;
             }
 
         });
+        spaceIds.removeAll(deleted);
+        spaceDigests.removeAll(deleted);
+        metrics.time("spaces.delete", start);
+        metrics.count("spaces.deleted", count);
+        taskLog("Deleted %d of %d spaces\n", count, deleted.size());
     }
 
-    private String getNewSpaceId(String externalId) {
-        final long oid = Long.parseLong(externalId);
-        final int idInternal = (int) (oid & 0x0000FFFF);
-        final long cid = getSpaceCID() << 32;
-        return Long.toString(cid + (idInternal >> 32));
+    /**
+     * Streams the occupations and creates them in adaptive batches, each in its own transaction. Intervals and space ids
+     * are resolved before the transaction starts so a retry only repeats the writes.
+     *
+     * A chunk is journaled only after its transaction commits, so a crash in between leaves a committed chunk that the
+     * next run will process again. Chunks are processed in order and hold at most MAX_CHUNK_SIZE records, so only records
+     * right after the last journaled one can be in that state, and only those are checked for an equal occupation
+     * already on their first space before being created.
+     */
+    public void processOccupations(Gson gson) throws IOException {
+        final BatchSizeController batches = newBatchSizeController("occupations");
+        final List<File> inputs = Collections.singletonList(new File(OCCUPATIONS_FILEPATH));
+        int chunks = 0;
+        int occupations = 0;
+        int missingSpaces = 0;
+        final AtomicInteger duplicates = new AtomicInteger();
+        final long start = System.currentTimeMillis();
+        try (ImportCheckpoint checkpoint = new ImportCheckpoint(new File(OCCUPATIONS_CHECKPOINT_FILEPATH), inputs);
+                RecordReader<ImportOccupationBean> reader =
+                        openReader(gson, "occupations", ImportOccupationBean.class, occupationDecoder, OCCUPATIONS_FILEPATH)) {
+            taskLog("Importing occupations, %d chunks already committed\n", checkpoint.getCommittedCount());
+            final int uncertainEnd = checkpoint.isResumed() ? checkpoint.getCommittedEnd() + MAX_CHUNK_SIZE : 0;
+            while (reader.hasNext()) {
+                final List<ImportOccupationBean> chunk = batches.nextBatch(reader);
+                final List<ImportOccupationBean> pending = new ArrayList<>();
+                final List<List<Interval>> intervals = new ArrayList<>();
+                final List<String[]> spaces = new ArrayList<>();
+                final List<Boolean> uncertain = new ArrayList<>();
+                long weight = 0;
+                final long convertStart = System.nanoTime();
+                for (int i = 0; i < chunk.size(); i++) {
+                    if (!checkpoint.isCommitted(occupations + i)) {
+                        final ImportOccupationBean bean = chunk.get(i);
+                        pending.add(bean);
+                        intervals.add(bean.getIntervals());
+                        spaces.add(resolveSpaceIds(bean.spaces));
+                        uncertain.add(occupations + i < uncertainEnd);
+                        weight += 1 + bean.spaces.size();
+                    }
+                }
+                metrics.time("occupations.convert", convertStart);
+                if (!pending.isEmpty()) {
+                    missingSpaces += batches.commit(pending.size(), weight, new CallableWithoutException<Integer>() {
+
+                        @Override
+                        public Integer call() {
+                            int missing = 0;
+                            for (int i = 0; i < pending.size(); i++) {
+                                if (uncertain.get(i) && existsOccupation(pending.get(i), intervals.get(i), spaces.get(i))) {
+                                    duplicates.incrementAndGet();
+                                    continue;
+                                }
+                                missing += createOccupation(pending.get(i), intervals.get(i), spaces.get(i));
+                            }
+                            return missing;
+                        }
+
+                    });
+                    checkpoint.markCommitted(chunks, occupations, chunk.size());
+                }
+                occupations += chunk.size();
+                if (++chunks % 50 == 0) {
+                    taskLog("%d occupations, %d/s\n", occupations, rate(occupations, start));
+                }
+            }
+        }
+        metrics.count("occupations.missingSpaces", missingSpaces);
+        metrics.count("occupations.duplicates", duplicates.get());
+        taskLog("Processed %d occupations in %d chunks, %d/s, %d missing spaces, %d already created\n", occupations, chunks,
+                rate(occupations, start), missingSpaces, duplicates.get());
+        taskLog("%s\n", batches);
     }
 
-    private static Long spaceCid;
+    /**
+     * Streams the exported lesson and evaluation allocations and adds each migrated space to the bridge occupation of its
+     * allocation, in adaptive batches. Space ids are translated before each transaction, through a primitive map of the
+     * spaces created by the import and the oid arithmetic for the others. Adding a space to a bridge twice changes nothing,
+     * so a chunk committed but not journaled before a crash is simply linked again.
+     */
+    public void processEventSpaceOccupations(Gson gson) throws IOException {
+        final LongLongMap createdSpaces = getCreatedSpaceOids();
+        final BatchSizeController batches = newBatchSizeController("event_space_occupations");
+        final List<File> inputs = Collections.singletonList(new File(EVENT_OCCUPATIONS_FILEPATH));
+        int chunks = 0;
+        int allocations = 0;
+        int attempted = 0;
+        int linked = 0;
+        final long start = System.currentTimeMillis();
+        try (ImportCheckpoint checkpoint = new ImportCheckpoint(new File(EVENT_OCCUPATIONS_CHECKPOINT_FILEPATH), inputs);
+                RecordReader<ImportEventSpaceOccupationBean> reader =
+                        openReader(gson, "event_space_occupations", ImportEventSpaceOccupationBean.class,
+                                eventSpaceOccupationDecoder, EVENT_OCCUPATIONS_FILEPATH)) {
+            taskLog("Importing event space occupations, %d chunks already committed\n", checkpoint.getCommittedCount());
+            while (reader.hasNext()) {
+                final List<ImportEventSpaceOccupationBean> chunk = batches.nextBatch(reader);
+                final List<ImportEventSpaceOccupationBean> pending = new ArrayList<>(chunk.size());
+                for (int i = 0; i < chunk.size(); i++) {
+                    if (!checkpoint.isCommitted(allocations + i)) {
+                        pending.add(chunk.get(i));
+                    }
+                }
+                if (!pending.isEmpty()) {
+                    final long[] spaceOids = new long[pending.size()];
+                    final long convertStart = System.nanoTime();
+                    for (int i = 0; i < spaceOids.length; i++) {
+                        final long legacy = Long.parseLong(pending.get(i).space);
+                        final long created = createdSpaces.get(legacy, 0);
+                        spaceOids[i] = created != 0 ? created : DomainClassRegistry.translate(spaceClassId, legacy);
+                    }
+                    metrics.time("event_space_occupations.convert", convertStart);
+                    linked += batches.commit(pending.size(), pending.size(), new CallableWithoutException<Integer>() {
+
+                        @Override
+                        public Integer call() {
+                            int count = 0;
+                            for (int i = 0; i < spaceOids.length; i++) {
+                                if (linkEventSpaceOccupation(pending.get(i).eventSpaceOccupation, spaceOids[i])) {
+                                    count++;
+                                }
+                            }
+                            return count;
+                        }
 
-    private Long getSpaceCID() {
-        if (spaceCid == null) {
-            spaceCid = initCID();
+                    });
+                    checkpoint.markCommitted(chunks, allocations, chunk.size());
+                    attempted += pending.size();
+                }
+                allocations += chunk.size();
+                if (++chunks % 50 == 0) {
+                    taskLog("%d event space occupations, %d/s\n", allocations, rate(allocations, start));
+                }
+            }
         }
-        return spaceCid;
+        metrics.count("event_space_occupations.linked", linked);
+        taskLog("Processed %d event space occupations in %d chunks, %d/s, %d linked, %d without bridge or space\n",
+                allocations, chunks, rate(allocations, start), linked, attempted - linked);
+        taskLog("%s\n", batches);
     }
 
-    private static Long initCID() {
-        Connection connection = ConnectionManager.getCurrentSQLConnection();
-        Statement statement = null;
-        try {
-            statement = connection.createStatement();
-            String query =
-                    String.format("select DOMAIN_CLASS_ID from FF$DOMAIN_CLASS_INFO where DOMAIN_CLASS_NAME = '%s'",
-                            Space.class.getName());
+    private LongLongMap getCreatedSpaceOids() {
+        final Map<String, String> created = spaceIds.snapshot();
+        final LongLongMap oids = new LongLongMap(created.size());
+        for (Map.Entry<String, String> entry : created.entrySet()) {
+            oids.put(Long.parseLong(entry.getKey()), Long.parseLong(entry.getValue()));
+        }
+        return oids;
+    }
 
-            ResultSet rs = statement.executeQuery(query);
-            while (rs.next()) {
-                return rs.getLong("DOMAIN_CLASS_ID");
+    private boolean linkEventSpaceOccupation(String allocationId, long spaceOid) {
+        final ResourceAllocation allocation = FenixFramework.getDomainObject(allocationId);
+        final Space space = FenixFramework.getDomainObject(Long.toString(spaceOid));
+        if (!FenixFramework.isDomainObjectValid(allocation) || !FenixFramework.isDomainObjectValid(space)) {
+            return false;
+        }
+        final Kind kind = ResourceAllocationClassifier.classify(allocation);
+        final Occupation bridge = kind == null ? null : CreateEventSpaceOccupationsBridgesTask.getBridge(kind, allocation);
+        if (bridge == null) {
+            return false;
+        }
+        bridge.addSpace(space);
+        return true;
+    }
+
+    private static long rate(int records, long start) {
+        return records * 1000L / Math.max(1, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Whether the first valid space of the occupation already has one with the same title, description and intervals, i.e.
+     * it was created by a chunk whose commit was not journaled.
+     */
+    private boolean existsOccupation(ImportOccupationBean bean, List<Interval> intervals, String[] spaceExternalIds) {
+        for (String spaceId : spaceExternalIds) {
+            final Space space = FenixFramework.getDomainObject(spaceId);
+            if (!FenixFramework.isDomainObjectValid(space)) {
+                continue;
             }
-            return null;
-        } catch (SQLException e) {
-            throw new Error(e);
-        } finally {
-            try {
-                if (statement != null) {
-                    statement.close();
+            for (Occupation occupation : space.getOccupationSet()) {
+                if (Objects.equal(occupation.getTitle(), bean.title)
+                        && Objects.equal(occupation.getDescription(), bean.description)
+                        && sameIntervals(occupation.getIntervals(), intervals)) {
+                    return true;
                 }
-            } catch (SQLException e) {
-                throw new Error(e);
             }
+            return false;
         }
+        return false;
     }
 
-    private Space update(Space space, SpaceBean spaceBean) {
-        for (InformationBean infoBean : spaceBean.beans()) {
-            infoBean.getMetadata().put("examCapacity", spaceBean.examCapacity == null ? null : spaceBean.examCapacity.toString());
-//            infoBean.getMetadata().put("normalCapacity",
-//                    spaceBean.normalCapacity == null ? null : spaceBean.normalCapacity.toString());
-            if (spaceBean.normalCapacity != null) {
-                infoBean.setAllocatableCapacity(spaceBean.normalCapacity);
+    private static boolean sameIntervals(List<Interval> a, List<Interval> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i).getStartMillis() != b.get(i).getStartMillis() || a.get(i).getEndMillis() != b.get(i).getEndMillis()) {
+                return false;
             }
-            space.bean(infoBean);
         }
-        final PersistentGroup occupationGroup = FenixFramework.getDomainObject(spaceBean.occupationGroup);
-        final PersistentGroup lessonOccupationsAccessGroup =
-                FenixFramework.getDomainObject(spaceBean.lessonOccupationsAccessGroup);
-        final PersistentGroup writtenEvaluationOccupationsAccessGroup =
-                FenixFramework.getDomainObject(spaceBean.writtenEvaluationOccupationsAccessGroup);
-        final PersistentGroup managementGroup = FenixFramework.getDomainObject(spaceBean.managementSpaceGroup);
+        return true;
+    }
 
-        Group group = NobodyGroup.get();
+    /**
+     * Returns how many of the occupation spaces could not be found.
+     */
+    private int createOccupation(ImportOccupationBean importOccupationBean, List<Interval> intervals, String[] spaceExternalIds) {
+        final ExplicitConfig explicitConfig = new ExplicitConfig(new JsonObject(), intervals);
 
-        if (occupationGroup != null) {
-            group = group.or(occupationGroup.toGroup());
+        final Occupation occupation =
+                new Occupation(importOccupationBean.title, importOccupationBean.description, explicitConfig);
+
+        int missing = 0;
+        for (String spaceId : spaceExternalIds) {
+            final Space space = FenixFramework.getDomainObject(spaceId);
+            if (FenixFramework.isDomainObjectValid(space)) {
+                occupation.addSpace(space);
+            } else {
+                missing++;
+            }
         }
+        return missing;
+    }
+
+    private static String importFilepath(String name) {
+        final String filepath = IMPORT_URL + "/" + FORMAT.filename(name);
+        return COMPRESSED ? filepath + ParallelGzipOutputStream.SUFFIX : filepath;
+    }
+
+    private InputStream openImportStream(String filepath) throws IOException {
+        final InputStream in = metrics.countBytes(new File(filepath).getName() + ".bytes", new FileInputStream(filepath));
+        return ParallelGzipOutputStream.isCompressed(filepath) ? ParallelGzipOutputStream.open(in) : in;
+    }
 
-        if (lessonOccupationsAccessGroup != null) {
-            group = group.or(lessonOccupationsAccessGroup.toGroup());
+    private Reader openImport(String filepath) throws IOException {
+        return new InputStreamReader(openImportStream(filepath), Charsets.UTF_8);
+    }
+
+    private <T> RecordReader<T> openReader(Gson gson, String kind, Class<T> type, RecordDecoder<T> decoder, String filepath)
+            throws IOException {
+        if (FORMAT == MigrationFormat.BINARY) {
+            return new BinaryRecordReader<>(kind, decoder, openImportStream(filepath));
         }
+        return new JsonArrayReader<>(gson, type, openImport(filepath));
+    }
+
+    private static DateTime toDateTime(Long millis) {
+        return millis == null ? null : new DateTime(millis.longValue());
+    }
 
-        if (writtenEvaluationOccupationsAccessGroup != null) {
-            group = group.or(writtenEvaluationOccupationsAccessGroup.toGroup());
+    private final RecordDecoder<SpaceBean> spaceDecoder = new RecordDecoder<SpaceBean>() {
+
+        @Override
+        public SpaceBean decode(MigrationDataInput in) {
+            final SpaceBean bean = new SpaceBean();
+            bean.parentExternalId = in.readId();
+            bean.externalId = in.readId();
+            in.readDate(); // createdOn is not imported
+            bean.examCapacity = in.readInteger();
+            bean.normalCapacity = in.readInteger();
+            bean.type = in.readString();
+            bean.occupationGroup = in.readString();
+            bean.managementSpaceGroup = in.readString();
+            bean.lessonOccupationsAccessGroup = in.readString();
+            bean.writtenEvaluationOccupationsAccessGroup = in.readString();
+            final int informations = (int) in.readVarLong();
+            bean.informations = new HashSet<>(informations);
+            for (int i = 0; i < informations; i++) {
+                final SpaceBean.SpaceInformationBean info = bean.new SpaceInformationBean();
+                info.capacity = in.readInteger();
+                info.blueprintNumber = in.readString();
+                info.validFromDate = toDateTime(in.readDate());
+                info.validUntilDate = toDateTime(in.readDate());
+                info.emails = in.readString();
+                info.ageQuality = in.readBoolean();
+                info.area = in.readDecimal();
+                info.description = in.readString();
+                info.distanceFromSanitaryInstalationsQuality = in.readBoolean();
+                info.doorNumber = in.readString();
+                info.heightQuality = in.readBoolean();
+                info.identification = in.readString();
+                info.illuminationQuality = in.readBoolean();
+                info.observations = in.readString();
+                info.securityQuality = in.readBoolean();
+                info.classificationCode = in.readString();
+                info.name = in.readString();
+                bean.informations.add(info);
+            }
+            final int blueprints = (int) in.readVarLong();
+            bean.blueprints = new HashSet<>(blueprints);
+            for (int i = 0; i < blueprints; i++) {
+                final SpaceBean.BlueprintBean blueprint = bean.new BlueprintBean();
+                blueprint.validFromDate = toDateTime(in.readDate());
+                blueprint.validUntilDate = toDateTime(in.readDate());
+                blueprint.creationPerson = in.readString();
+                blueprint.content = in.readBytes();
+                blueprint.hash = in.readString();
+                bean.blueprints.add(blueprint);
+            }
+            return bean;
         }
 
-        space.setOccupationsAccessGroup(group.equals(NobodyGroup.get()) ? null : group);
+    };
+
+    private final RecordDecoder<ImportOccupationBean> occupationDecoder = new RecordDecoder<ImportOccupationBean>() {
+
+        @Override
+        public ImportOccupationBean decode(MigrationDataInput in) {
+            final String description = in.readString();
+            final String title = in.readString();
+            final String frequency = in.readString();
+            final DateTime beginDate = toDateTime(in.readDate());
+            final DateTime endDate = toDateTime(in.readDate());
+            final String beginTime = in.readString();
+            final String endTime = in.readString();
+            final Boolean saturday = in.readBoolean();
+            final Boolean sunday = in.readBoolean();
+            final int spaceCount = (int) in.readVarLong();
+            final Set<String> spaces = new HashSet<>(spaceCount);
+            for (int i = 0; i < spaceCount; i++) {
+                spaces.add(in.readId());
+            }
+            final List<Interval> intervals = readIntervals(in);
+            final ImportOccupationBean bean =
+                    new ImportOccupationBean(description, title, frequency, beginDate == null ? null
+                            : DATE_FORMAT.print(beginDate), endDate == null ? null : DATE_FORMAT.print(endDate),
+                            beginTime, endTime, saturday, sunday, spaces, null);
+            bean.decodedIntervals = intervals;
+            bean.recurrent = in.readBoolean();
+            if (bean.recurrent != null) {
+                bean.decodedExcluded = readIntervals(in);
+                bean.zone = in.readString();
+            }
+            return bean;
+        }
 
-        if (FenixFramework.isDomainObjectValid(managementGroup)) {
-            space.setManagementAccessGroup(managementGroup.toGroup());
-        } else {
-            space.setManagementAccessGroup((Group) null);
+        private List<Interval> readIntervals(MigrationDataInput in) {
+            final int count = (int) in.readVarLong();
+            final List<Interval> intervals = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                intervals.add(new Interval(in.readSignedVarLong(), in.readSignedVarLong()));
+            }
+            return intervals;
         }
-        return space;
+
+    };
+
+    private final RecordDecoder<ImportEventSpaceOccupationBean> eventSpaceOccupationDecoder =
+            new RecordDecoder<ImportEventSpaceOccupationBean>() {
+
+                @Override
+                public ImportEventSpaceOccupationBean decode(MigrationDataInput in) {
+                    return new ImportEventSpaceOccupationBean(in.readId(), in.readId());
+                }
+
+            };
+
+    private final RecordDecoder<ClassificationBean> classificationDecoder = new RecordDecoder<ClassificationBean>() {
+
+        @Override
+        public ClassificationBean decode(MigrationDataInput in) {
+            final ClassificationBean bean = new ClassificationBean(in.readInteger(), in.readString());
+            final int childs = (int) in.readVarLong();
+            for (int i = 0; i < childs; i++) {
+                bean.childs.add(decode(in));
+            }
+            return bean;
+        }
+
+    };
+
+    private static class ShardBean {
+        public String file;
+        public int spaces;
     }
 
-    private Space innerCreate(Space parent, SpaceBean spaceBean) {
-        Space space = new Space(parent, (Information) null);
-        for (InformationBean infoBean : spaceBean.beans()) {
-            infoBean.getMetadata().put("examCapacity", spaceBean.examCapacity == null ? null : spaceBean.examCapacity.toString());
-//            infoBean.getMetadata().put("normalCapacity",
-//                    spaceBean.normalCapacity == null ? null : spaceBean.normalCapacity.toString());
-            if (spaceBean.normalCapacity != null) {
-                infoBean.setAllocatableCapacity(spaceBean.normalCapacity);
+    private static class ShardManifestBean {
+        public int spaces;
+        public List<ShardBean> shards;
+    }
+
+    private List<String> getSpacesFilepaths(Gson gson) throws IOException {
+        if (!new File(SPACES_MANIFEST_FILEPATH).exists()) {
+            return Collections.singletonList(SPACES_FILEPATH);
+        }
+        final ShardManifestBean manifest;
+        try (Reader reader = openImport(SPACES_MANIFEST_FILEPATH)) {
+            manifest = gson.fromJson(reader, ShardManifestBean.class);
+        }
+        taskLog("Reading %d spaces from %d shards\n", manifest.spaces, manifest.shards.size());
+        final List<String> filepaths = new ArrayList<>();
+        for (ShardBean shard : manifest.shards) {
+            filepaths.add(IMPORT_URL + "/" + shard.file);
+        }
+        return filepaths;
+    }
+
+    public void processSpaces(Gson gson) throws IOException {
+        final List<String> filepaths = getSpacesFilepaths(gson);
+        final List<File> inputs = new ArrayList<>();
+        for (String filepath : filepaths) {
+            inputs.add(new File(filepath));
+        }
+        final BatchSizeController batches = newBatchSizeController("spaces");
+        try (ImportCheckpoint checkpoint = new ImportCheckpoint(new File(SPACES_CHECKPOINT_FILEPATH), inputs)) {
+            taskLog("Processing adaptive chunks, %d already committed for input %s\n", checkpoint.getCommittedCount(),
+                    checkpoint.getInputHash());
+            if (CONCURRENT) {
+                processSubtrees(gson, filepaths, checkpoint, batches);
+                return;
+            }
+            int chunks = 0;
+            int spaces = 0;
+            for (String filepath : filepaths) {
+                try (RecordReader<SpaceBean> reader = openReader(gson, "spaces", SpaceBean.class, spaceDecoder, filepath)) {
+                    while (reader.hasNext()) {
+                        final List<SpaceBean> chunk = batches.nextBatch(reader);
+                        final List<SpaceBean> pending = new ArrayList<>();
+                        for (int i = 0; i < chunk.size(); i++) {
+                            if (!checkpoint.isCommitted(spaces + i)) {
+                                pending.add(chunk.get(i));
+                            }
+                        }
+                        if (pending.isEmpty()) {
+                            taskLog("Skipping committed chunk %d\n", chunks);
+                        } else {
+                            taskLog("Chunk with %d \n", pending.size());
+                            processPartition(batches, pending);
+                            checkpoint.markCommitted(chunks, spaces, chunk.size());
+                        }
+                        spaces += chunk.size();
+                        chunks++;
+                    }
+                }
+            }
+            taskLog("Processed %d spaces in %d chunks\n", spaces, chunks);
+            taskLog("%s\n", batches);
+        }
+    }
+
+    private static Hasher putValues(Hasher hasher, Object... values) {
+        for (Object value : values) {
+            if (value == null) {
+                hasher.putByte((byte) 0);
+            } else {
+                final String string =
+                        value instanceof DateTime ? Long.toString(((DateTime) value).getMillis()) : value.toString();
+                hasher.putByte((byte) 1).putString(string, Charsets.UTF_8);
+            }
+        }
+        return hasher;
+    }
+
+    private static void putSorted(Hasher hasher, List<String> parts) {
+        Collections.sort(parts);
+        hasher.putInt(parts.size());
+        for (String part : parts) {
+            hasher.putString(part, Charsets.UTF_8);
+        }
+    }
+
+    private static class SpaceRef {
+        public String externalId;
+        public String parentExternalId;
+    }
+
+    /**
+     * The parent of every space in the files. When order is given it also gets, for each file, its space ids in record
+     * order.
+     */
+    private Map<String, String> readParents(Gson gson, List<String> filepaths, List<List<String>> order) throws IOException {
+        final Map<String, String> parents = new HashMap<>();
+        for (String filepath : filepaths) {
+            final List<String> ids = new ArrayList<>();
+            if (FORMAT == MigrationFormat.BINARY) {
+                try (RecordReader<SpaceBean> reader = openReader(gson, "spaces", SpaceBean.class, spaceDecoder, filepath)) {
+                    while (reader.hasNext()) {
+                        final SpaceBean bean = reader.next();
+                        parents.put(bean.externalId, bean.parentExternalId);
+                        ids.add(bean.externalId);
+                    }
+                }
+            } else {
+                try (JsonArrayReader<SpaceRef> reader = new JsonArrayReader<>(gson, SpaceRef.class, openImport(filepath))) {
+                    while (reader.hasNext()) {
+                        final SpaceRef ref = reader.next();
+                        parents.put(ref.externalId, ref.parentExternalId);
+                        ids.add(ref.externalId);
+                    }
+                }
+            }
+            if (order != null) {
+                order.add(ids);
+            }
+        }
+        return parents;
+    }
+
+    /**
+     * Depth of every space in the input tree, zero for the spaces whose parent is not in the input. A cycle is cut where the
+     * walk finds it.
+     */
+    private static Map<String, Integer> getDepths(Map<String, String> parents) {
+        final Map<String, Integer> depths = new HashMap<>();
+        for (String externalId : parents.keySet()) {
+            final List<String> path = new ArrayList<>();
+            String current = externalId;
+            Integer depth = null;
+            while (depth == null) {
+                depth = depths.get(current);
+                if (depth != null) {
+                    break;
+                }
+                path.add(current);
+                final String parent = parents.get(current);
+                if (parent == null || !parents.containsKey(parent) || path.size() > parents.size()) {
+                    depth = -1;
+                } else {
+                    current = parent;
+                }
+            }
+            // path holds the spaces from the one asked for up to the first one of known depth, deepest first
+            for (int i = path.size() - 1; i >= 0; i--) {
+                depths.put(path.get(i), ++depth);
+            }
+        }
+        return depths;
+    }
+
+    private Map<String, String> getSubtreeRoots(Gson gson, List<String> filepaths) throws IOException {
+        final Map<String, String> parents = readParents(gson, filepaths, null);
+        final Map<String, String> roots = new HashMap<>();
+        for (String externalId : parents.keySet()) {
+            final List<String> path = new ArrayList<>();
+            String current = externalId;
+            String root = null;
+            while (root == null) {
+                root = roots.get(current);
+                if (root != null) {
+                    break;
+                }
+                path.add(current);
+                final String parent = parents.get(current);
+                if (parent == null || !parents.containsKey(parent) || path.size() > parents.size()) {
+                    root = current;
+                } else {
+                    current = parent;
+                }
+            }
+            for (String id : path) {
+                roots.put(id, root);
+            }
+        }
+        return roots;
+    }
+
+    private void processSubtrees(Gson gson, List<String> filepaths, final ImportCheckpoint checkpoint,
+            final BatchSizeController batches) throws IOException {
+        final Map<String, String> roots = getSubtreeRoots(gson, filepaths);
+        taskLog("Processing %d subtrees on %d threads\n", new HashSet<>(roots.values()).size(), IMPORT_THREADS);
+
+        // every subtree always goes to the same single threaded stripe, so its chunks never run concurrently
+        final ExecutorService[] stripes = new ExecutorService[IMPORT_THREADS];
+        final List<List<SpaceBean>> buffers = new ArrayList<>();
+        final List<List<Integer>> bufferRecords = new ArrayList<>();
+        for (int i = 0; i < IMPORT_THREADS; i++) {
+            stripes[i] = Executors.newSingleThreadExecutor();
+            buffers.add(new ArrayList<SpaceBean>());
+            bufferRecords.add(new ArrayList<Integer>());
+        }
+        final Semaphore inFlight = new Semaphore(IMPORT_THREADS * 2);
+        final AtomicInteger chunks = new AtomicInteger();
+        final List<Future<?>> futures = new ArrayList<>();
+
+        try {
+            int record = 0;
+            for (String filepath : filepaths) {
+                try (RecordReader<SpaceBean> reader = openReader(gson, "spaces", SpaceBean.class, spaceDecoder, filepath)) {
+                    while (reader.hasNext()) {
+                        final SpaceBean bean = reader.next();
+                        final int index = record++;
+                        if (checkpoint.isCommitted(index)) {
+                            continue;
+                        }
+                        final int stripe = (roots.get(bean.externalId).hashCode() & Integer.MAX_VALUE) % IMPORT_THREADS;
+                        buffers.get(stripe).add(bean);
+                        bufferRecords.get(stripe).add(index);
+                        if (buffers.get(stripe).size() >= batches.nextBatchSize()) {
+                            futures.add(submitSubtreeChunk(stripes[stripe], inFlight, checkpoint, batches, chunks,
+                                    buffers.set(stripe, new ArrayList<SpaceBean>()),
+                                    bufferRecords.set(stripe, new ArrayList<Integer>())));
+                        }
+                    }
+                }
+            }
+            for (int stripe = 0; stripe < IMPORT_THREADS; stripe++) {
+                if (!buffers.get(stripe).isEmpty()) {
+                    futures.add(submitSubtreeChunk(stripes[stripe], inFlight, checkpoint, batches, chunks, buffers.get(stripe),
+                            bufferRecords.get(stripe)));
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            taskLog("Processed %d spaces in %d chunks\n", record, chunks.get());
+            taskLog("%s\n", batches);
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            for (ExecutorService stripe : stripes) {
+                stripe.shutdownNow();
             }
-            space.bean(infoBean);
         }
-        final PersistentGroup occupationGroup = FenixFramework.getDomainObject(spaceBean.occupationGroup);
-        final PersistentGroup lessonOccupationsAccessGroup =
-                FenixFramework.getDomainObject(spaceBean.lessonOccupationsAccessGroup);
-        final PersistentGroup writtenEvaluationOccupationsAccessGroup =
-                FenixFramework.getDomainObject(spaceBean.writtenEvaluationOccupationsAccessGroup);
-        final PersistentGroup managementGroup = FenixFramework.getDomainObject(spaceBean.managementSpaceGroup);
+    }
+
+    private Future<?> submitSubtreeChunk(ExecutorService stripe, final Semaphore inFlight, final ImportCheckpoint checkpoint,
+            final BatchSizeController batches, final AtomicInteger chunks, final List<SpaceBean> chunk,
+            final List<Integer> records) throws InterruptedException {
+        inFlight.acquire();
+        return stripe.submit(new Callable<Void>() {
+
+            @Override
+            public Void call() throws IOException {
+                try {
+                    processPartition(batches, chunk);
+                    checkpoint.markCommitted(chunks.getAndIncrement(), records);
+                    return null;
+                } finally {
+                    inFlight.release();
+                }
+            }
+
+        });
+    }
+
+    private BatchSizeController newBatchSizeController(String name) {
+        return new BatchSizeController(MIN_CHUNK_SIZE, MAX_CHUNK_SIZE, 1000, TARGET_COMMIT_MILLIS, TARGET_WRITE_SET, metrics,
+                name);
+    }
 
-        Group group = NobodyGroup.get();
+    private static long weight(SpaceBean bean) {
+        return 1 + (bean.informations == null ? 0 : bean.informations.size())
+                + (bean.blueprints == null ? 0 : bean.blueprints.size());
+    }
 
-        if (occupationGroup != null) {
-            group = group.or(occupationGroup.toGroup());
+    /**
+     * Applies the spaces whose digest differs from the one recorded when they were last applied, or whose recorded space
+     * no longer exists. When none changed no write transaction is opened at all.
+     */
+    private void processPartition(BatchSizeController batches, List<SpaceBean> partition) throws IOException {
+        final List<SpaceBean> changed = new ArrayList<>();
+        final Map<String, String> digests = new HashMap<>();
+        final Map<String, String> unchanged = new HashMap<>();
+        long weight = 0;
+        final long digestStart = System.nanoTime();
+        for (SpaceBean bean : partition) {
+            final String digest = bean.digest();
+            final String entry = spaceDigests.get(bean.externalId);
+            if (entry != null && entry.startsWith(digest + ":")) {
+                unchanged.put(bean.externalId, entry.substring(digest.length() + 1));
+            }
+            digests.put(bean.externalId, digestEntry(digest, getSpaceId(bean.externalId)));
         }
+        final Set<String> missing = getMissingSpaces(unchanged.values());
+        for (SpaceBean bean : partition) {
+            final String oid = unchanged.get(bean.externalId);
+            if (oid == null || missing.contains(oid)) {
+                changed.add(bean);
+                weight += weight(bean);
+            } else {
+                digests.remove(bean.externalId);
+            }
+        }
+        metrics.time("spaces.digest", digestStart);
+        skippedSpaces.addAndGet(partition.size() - changed.size());
+        if (changed.isEmpty()) {
+            return;
+        }
+        batches.commit(changed.size(), weight, new CallableWithoutException<Void>() {
 
-        if (lessonOccupationsAccessGroup != null) {
-            group = group.or(lessonOccupationsAccessGroup.toGroup());
+            @Override
+            public Void call() {
+                for (final SpaceBean bean : changed) {
+                    process(bean);
+
+                }
+                return null;
+            }
+        });
+        spaceDigests.putAll(digests);
+        appliedSpaces.addAndGet(changed.size());
+    }
+
+    private Space process(final SpaceBean spaceBean) {
+        if (spaceBean == null) {
+            return null;
         }
+        return update(resolveSpace(spaceBean.externalId), spaceBean);
+    }
+
+    private Space resolveSpace(String legacyExternalId) {
+        return FenixFramework.getDomainObject(getSpaceId(legacyExternalId));
+    }
+
+    private String getSpaceId(String legacyExternalId) {
+        final String created = spaceIds.get(legacyExternalId);
+        return created != null ? created : getNewSpaceId(legacyExternalId);
+    }
 
-        if (writtenEvaluationOccupationsAccessGroup != null) {
-            group = group.or(writtenEvaluationOccupationsAccessGroup.toGroup());
+    private static String digestEntry(String digest, String spaceId) {
+        return digest + ":" + spaceId;
+    }
+
+    /**
+     * The given space oids that don't resolve to a space of the target database, looked up in a read only transaction.
+     */
+    private Set<String> getMissingSpaces(final Collection<String> oids) {
+        if (oids.isEmpty()) {
+            return Collections.emptySet();
         }
+        try {
+            return FenixFramework.getTransactionManager().withTransaction(new Callable<Set<String>>() {
 
-        space.setOccupationsAccessGroup(group.equals(NobodyGroup.get()) ? null : group);
+                @Override
+                public Set<String> call() {
+                    final Set<String> missing = new HashSet<>();
+                    for (String oid : oids) {
+                        if (!isSpace(oid)) {
+                            missing.add(oid);
+                        }
+                    }
+                    return missing;
+                }
+
+            }, new AtomicInstance(TxMode.READ, false));
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+
+    private static boolean isSpace(String oid) {
+        try {
+            final Object space = FenixFramework.getDomainObject(oid);
+            return space instanceof Space && FenixFramework.isDomainObjectValid((Space) space);
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private String getNewSpaceId(String externalId) {
+        return DomainClassRegistry.translate(spaceClassId, externalId);
+    }
+
+    /**
+     * Resolves a batch of legacy space ids to the external ids of the migrated spaces, translating them in bulk.
+     */
+    private String[] resolveSpaceIds(Collection<String> legacyExternalIds) {
+        final String[] legacy = legacyExternalIds.toArray(new String[legacyExternalIds.size()]);
+        final long[] oids = new long[legacy.length];
+        for (int i = 0; i < legacy.length; i++) {
+            oids[i] = Long.parseLong(legacy[i]);
+        }
+        DomainClassRegistry.translateAll(spaceClassId, oids, 0, oids.length);
+        final String[] resolved = new String[legacy.length];
+        for (int i = 0; i < legacy.length; i++) {
+            final String created = spaceIds.get(legacy[i]);
+            resolved[i] = created != null ? created : Long.toString(oids[i]);
+        }
+        return resolved;
+    }
+
+    private Set<InformationBean> informationBeans(SpaceBean spaceBean) {
+        final long start = System.nanoTime();
+        final Set<InformationBean> beans = spaceBean.beans(classificationIndex, blueprintPack);
+        metrics.time("spaces.convert", start);
+        return beans;
+    }
+
+    private Space update(Space space, SpaceBean spaceBean) {
+        for (InformationBean infoBean : informationBeans(spaceBean)) {
+            infoBean.getMetadata().put("examCapacity", spaceBean.examCapacity == null ? null : spaceBean.examCapacity.toString());
+//            infoBean.getMetadata().put("normalCapacity",
+//                    spaceBean.normalCapacity == null ? null : spaceBean.normalCapacity.toString());
+            if (spaceBean.normalCapacity != null) {
+                infoBean.setAllocatableCapacity(spaceBean.normalCapacity);
+            }
+            space.bean(infoBean);
+        }
+        applyAccessGroups(space, spaceBean);
+        return space;
+    }
 
-        if (FenixFramework.isDomainObjectValid(managementGroup)) {
-            space.setManagementAccessGroup(managementGroup.toGroup());
-        } else {
-            space.setManagementAccessGroup((Group) null);
+    private void applyAccessGroups(Space space, SpaceBean spaceBean) {
+        final AccessGroups groups =
+                accessGroupResolver.resolve(spaceBean.occupationGroup, spaceBean.lessonOccupationsAccessGroup,
+                        spaceBean.writtenEvaluationOccupationsAccessGroup, spaceBean.managementSpaceGroup);
+        space.setOccupationsAccessGroup(groups.getOccupationsAccessGroup());
+        space.setManagementAccessGroup(groups.getManagementAccessGroup());
+    }
+
+    private Space innerCreate(Space parent, SpaceBean spaceBean) {
+        Space space = new Space(parent, (Information) null);
+        for (InformationBean infoBean : informationBeans(spaceBean)) {
+            infoBean.getMetadata().put("examCapacity", spaceBean.examCapacity == null ? null : spaceBean.examCapacity.toString());
+//            infoBean.getMetadata().put("normalCapacity",
+//                    spaceBean.normalCapacity == null ? null : spaceBean.normalCapacity.toString());
+            if (spaceBean.normalCapacity != null) {
+                infoBean.setAllocatableCapacity(spaceBean.normalCapacity);
+            }
+            space.bean(infoBean);
         }
+        applyAccessGroups(space, spaceBean);
 
         return space;
     }
@@ -0,0 +1,288 @@
+package org.fenixedu.spaces.migration;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.fenixedu.bennu.core.domain.groups.PersistentGroup;
+import org.fenixedu.spaces.migration.ImportSpacesTask.SpaceBean;
+import org.fenixedu.spaces.migration.ImportSpacesTask.SpaceBean.BlueprintBean;
+import org.fenixedu.spaces.migration.ImportSpacesTask.SpaceBean.SpaceInformationBean;
+import org.joda.time.DateTime;
+
+import pt.ist.fenixframework.Atomic.TxMode;
+import pt.ist.fenixframework.FenixFramework;
+import pt.ist.fenixframework.atomic.AtomicInstance;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Predicate;
+import com.google.gson.Gson;
+
+/**
+ * Checks the space records of an import before anything is written: classification codes and types, parent references,
+ * access group ids, information and blueprint dates, and blueprints that must come from the pack. The records are read by
+ * the caller and checked in chunks on a pool of read only transactions. Every problem is collected, so a single run reports
+ * all of them instead of the first one failing a write transaction.
+ */
+class ImportValidator implements AutoCloseable {
+
+    private static final int CHUNK_SIZE = 500;
+
+    private static class Problem {
+        public final String file;
+        public final String space;
+        public final String kind;
+        public final String message;
+
+        public Problem(String file, String space, String kind, String message) {
+            this.file = file;
+            this.space = space;
+            this.kind = kind;
+            this.message = message;
+        }
+    }
+
+    private static class ReportBean {
+        public int records;
+        public int problems;
+        public Map<String, Integer> byKind;
+        public List<Problem> details;
+    }
+
+    private final ClassificationIndex classifications;
+    private final String defaultRoomClassification;
+    private final BlueprintPack.Reader pack;
+    private final ExecutorService executor;
+    private final Semaphore inFlight;
+    private final List<Future<Void>> futures = new ArrayList<>();
+    // every space in the input, with the file it came from
+    private final ConcurrentMap<String, String> spaces = new ConcurrentHashMap<>();
+    // child, parent and file of every parent reference, checked once all spaces are known
+    private final Queue<String[]> parentReferences = new ConcurrentLinkedQueue<>();
+    private final ConcurrentMap<String, Boolean> groups = new ConcurrentHashMap<>();
+    private final Queue<Problem> problems = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger records = new AtomicInteger();
+
+    public ImportValidator(ClassificationIndex classifications, String defaultRoomClassification, BlueprintPack.Reader pack,
+            int threads) {
+        this.classifications = classifications;
+        this.defaultRoomClassification = defaultRoomClassification;
+        this.pack = pack;
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.inFlight = new Semaphore(threads * 2);
+    }
+
+    /**
+     * Reads every record of the file, handing them to the workers in chunks. A file that can't be parsed is reported as
+     * a problem and the records read up to that point are still checked.
+     */
+    public void submit(String file, Iterator<SpaceBean> reader) throws InterruptedException {
+        List<SpaceBean> chunk = new ArrayList<>(CHUNK_SIZE);
+        try {
+            while (reader.hasNext()) {
+                chunk.add(reader.next());
+                if (chunk.size() == CHUNK_SIZE) {
+                    submit(file, chunk);
+                    chunk = new ArrayList<>(CHUNK_SIZE);
+                }
+            }
+        } catch (RuntimeException e) {
+            problems.add(new Problem(file, null, "file", "can't be read: " + e.getMessage()));
+        }
+        if (!chunk.isEmpty()) {
+            submit(file, chunk);
+        }
+    }
+
+    private void submit(final String file, final List<SpaceBean> chunk) throws InterruptedException {
+        inFlight.acquire();
+        futures.add(executor.submit(new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                try {
+                    return FenixFramework.getTransactionManager().withTransaction(new Callable<Void>() {
+
+                        @Override
+                        public Void call() {
+                            for (SpaceBean bean : chunk) {
+                                check(file, bean);
+                            }
+                            return null;
+                        }
+
+                    }, new AtomicInstance(TxMode.READ, false));
+                } finally {
+                    inFlight.release();
+                }
+            }
+
+        }));
+    }
+
+    /**
+     * Waits for the workers and then checks that every parent is either in the input or already migrated.
+     */
+    public void finish(Predicate<String> existingSpace) throws InterruptedException {
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        final Map<String, Boolean> existing = new HashMap<>();
+        for (String[] reference : parentReferences) {
+            final String parent = reference[1];
+            if (spaces.containsKey(parent)) {
+                continue;
+            }
+            Boolean exists = existing.get(parent);
+            if (exists == null) {
+                try {
+                    exists = existingSpace.apply(parent);
+                } catch (RuntimeException e) {
+                    exists = false;
+                }
+                existing.put(parent, exists);
+            }
+            if (!exists) {
+                problems.add(new Problem(reference[2], reference[0], "parent", "parent " + parent
+                        + " is neither in the input nor migrated"));
+            }
+        }
+    }
+
+    private void check(String file, SpaceBean bean) {
+        records.incrementAndGet();
+        if (bean.externalId == null) {
+            problems.add(new Problem(file, null, "space", "space without external id"));
+            return;
+        }
+        final String previous = spaces.putIfAbsent(bean.externalId, file);
+        if (previous != null) {
+            problems.add(new Problem(file, bean.externalId, "space", "duplicate space, also in " + previous));
+        }
+        if (bean.parentExternalId != null) {
+            parentReferences.add(new String[] { bean.externalId, bean.parentExternalId, file });
+        }
+        for (String groupId : bean.getGroupIds()) {
+            if (groupId != null && !isGroup(groupId)) {
+                problems.add(new Problem(file, bean.externalId, "group", "group " + groupId + " doesn't exist"));
+            }
+        }
+        if (bean.informations != null) {
+            for (SpaceInformationBean info : bean.informations) {
+                checkInformation(file, bean, info);
+            }
+        }
+        if (bean.blueprints != null) {
+            for (BlueprintBean blueprint : bean.blueprints) {
+                checkBlueprint(file, bean, blueprint);
+            }
+        }
+    }
+
+    private void checkInformation(String file, SpaceBean bean, SpaceInformationBean info) {
+        try {
+            checkRange(file, bean, "information", info.getValidFrom(), info.getValidUntil());
+        } catch (IllegalArgumentException e) {
+            problems.add(new Problem(file, bean.externalId, "information", "bad date: " + e.getMessage()));
+        }
+        if ("Room".equals(bean.type)) {
+            final String code = info.classificationCode == null || info.classificationCode.isEmpty() ? defaultRoomClassification
+                    : info.classificationCode;
+            if (classifications.findByCode(code) == null) {
+                problems.add(new Problem(file, bean.externalId, "classification", "code doesnt exist: "
+                        + ClassificationIndex.normalize(code)));
+            }
+        } else if (classifications.findByType(bean.type) == null) {
+            problems.add(new Problem(file, bean.externalId, "classification", "no classification for type " + bean.type));
+        }
+    }
+
+    private void checkBlueprint(String file, SpaceBean bean, BlueprintBean blueprint) {
+        try {
+            checkRange(file, bean, "blueprint", blueprint.getValidFrom(), blueprint.getValidUntil());
+        } catch (IllegalArgumentException e) {
+            problems.add(new Problem(file, bean.externalId, "blueprint", "bad date: " + e.getMessage()));
+        }
+        final String packed = blueprint.getPackedHash();
+        if (packed != null && (pack == null || !pack.contains(packed))) {
+            problems.add(new Problem(file, bean.externalId, "blueprint", "blueprint " + packed
+                    + (pack == null ? " needs a blueprint pack" : " is not in the blueprint pack")));
+        }
+    }
+
+    private void checkRange(String file, SpaceBean bean, String kind, DateTime validFrom, DateTime validUntil) {
+        if (validFrom != null && validUntil != null && validUntil.isBefore(validFrom)) {
+            problems.add(new Problem(file, bean.externalId, kind, "valid until " + validUntil.toLocalDate()
+                    + " before valid from " + validFrom.toLocalDate()));
+        }
+    }
+
+    private boolean isGroup(String groupId) {
+        Boolean valid = groups.get(groupId);
+        if (valid == null) {
+            try {
+                final Object group = FenixFramework.getDomainObject(groupId);
+                valid = group instanceof PersistentGroup && FenixFramework.isDomainObjectValid((PersistentGroup) group);
+            } catch (RuntimeException e) {
+                valid = false;
+            }
+            groups.putIfAbsent(groupId, valid);
+        }
+        return valid;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    public int getRecords() {
+        return records.get();
+    }
+
+    public int getProblems() {
+        return problems.size();
+    }
+
+    public byte[] report(Gson gson) {
+        final ReportBean report = new ReportBean();
+        report.records = records.get();
+        report.details = new ArrayList<>(problems);
+        report.problems = report.details.size();
+        report.byKind = new TreeMap<>();
+        for (Problem problem : report.details) {
+            final Integer count = report.byKind.get(problem.kind);
+            report.byKind.put(problem.kind, count == null ? 1 : count + 1);
+        }
+        return gson.toJson(report).getBytes(Charsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        final Map<String, Integer> byKind = new TreeMap<>();
+        for (Problem problem : problems) {
+            final Integer count = byKind.get(problem.kind);
+            byKind.put(problem.kind, count == null ? 1 : count + 1);
+        }
+        return String.format("validated %d spaces, %d problems %s", records.get(), problems.size(), byKind);
+    }
+
+}
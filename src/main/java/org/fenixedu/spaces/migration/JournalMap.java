@@ -0,0 +1,78 @@
+package org.fenixedu.spaces.migration;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * String map kept in a local append only journal, synced on every write, so it survives between import runs. Later lines
+ * override earlier ones for the same key, and a line with just the key removes it.
+ */
+class JournalMap implements Closeable {
+
+    private final Map<String, String> entries = new HashMap<>();
+    private final FileOutputStream stream;
+    private final Writer writer;
+
+    public JournalMap(File journal) throws IOException {
+        if (journal.exists()) {
+            final String content = Files.toString(journal, Charsets.UTF_8);
+            // anything after the last newline is a partially written entry that was never recorded
+            for (String line : content.substring(0, content.lastIndexOf('\n') + 1).split("\n")) {
+                final String[] parts = line.split(" ");
+                if (parts.length == 2) {
+                    entries.put(parts[0], parts[1]);
+                } else if (parts.length == 1 && !parts[0].isEmpty()) {
+                    entries.remove(parts[0]);
+                }
+            }
+        }
+        this.stream = new FileOutputStream(journal, true);
+        this.writer = new OutputStreamWriter(stream, Charsets.UTF_8);
+    }
+
+    public synchronized String get(String key) {
+        return entries.get(key);
+    }
+
+    public synchronized Map<String, String> snapshot() {
+        return new HashMap<>(entries);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void putAll(Map<String, String> entries) throws IOException {
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            writer.write(entry.getKey() + " " + entry.getValue() + "\n");
+        }
+        writer.flush();
+        stream.getFD().sync();
+        this.entries.putAll(entries);
+    }
+
+    public synchronized void removeAll(Collection<String> keys) throws IOException {
+        for (String key : keys) {
+            writer.write(key + "\n");
+        }
+        writer.flush();
+        stream.getFD().sync();
+        this.entries.keySet().removeAll(keys);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+}
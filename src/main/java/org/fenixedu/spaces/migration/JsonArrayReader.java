@@ -0,0 +1,55 @@
+package org.fenixedu.spaces.migration;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Type;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.stream.JsonReader;
+
+/**
+ * Pulls the elements of a json array one at a time, so only the element being read is kept in memory.
+ */
+class JsonArrayReader<T> extends RecordReader<T> {
+
+    private final Gson gson;
+    private final Type type;
+    private final JsonReader reader;
+
+    public JsonArrayReader(Gson gson, Type type, Reader in) throws IOException {
+        this.gson = gson;
+        this.type = type;
+        this.reader = new JsonReader(in);
+        this.reader.beginArray();
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            return reader.hasNext();
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        }
+    }
+
+    @Override
+    protected T read() {
+        return gson.fromJson(reader, type);
+    }
+
+    @Override
+    protected void skipRecord() {
+        try {
+            reader.skipValue();
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+}
@@ -0,0 +1,43 @@
+package org.fenixedu.spaces.migration;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.lang.reflect.Type;
+
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Writes a json array one element at a time, so only the bean being serialized is kept in memory.
+ */
+class JsonArrayWriter<T> extends RecordWriter<T> {
+
+    private final Gson gson;
+    private final Type type;
+    private final JsonWriter writer;
+
+    public JsonArrayWriter(Gson gson, Type type, OutputStream out) throws IOException {
+        this.gson = gson;
+        this.type = type;
+        this.writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, Charsets.UTF_8)));
+        this.writer.setIndent("  ");
+        this.writer.beginArray();
+    }
+
+    @Override
+    protected void write(T bean) {
+        gson.toJson(bean, type, writer);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (isFinished()) {
+            writer.endArray();
+        }
+        writer.close();
+    }
+
+}
@@ -0,0 +1,77 @@
+package org.fenixedu.spaces.migration;
+
+/**
+ * Open addressing map from long to long, without boxing. Zero is not a valid key, which holds for oids.
+ */
+final class LongLongMap {
+
+    private long[] keys;
+    private long[] values;
+    private int size = 0;
+
+    public LongLongMap(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        this.keys = new long[capacity];
+        this.values = new long[capacity];
+    }
+
+    private static int slot(long key, int mask) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    public void put(long key, long value) {
+        if (key == 0) {
+            throw new IllegalArgumentException("zero key");
+        }
+        if ((size + 1) * 2 > keys.length) {
+            grow();
+        }
+        final int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (keys[i] != 0 && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (keys[i] == 0) {
+            size++;
+        }
+        keys[i] = key;
+        values[i] = value;
+    }
+
+    /**
+     * The value of the key, or the given default when it is absent.
+     */
+    public long get(long key, long absent) {
+        final int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (keys[i] != 0) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return absent;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void grow() {
+        final long[] oldKeys = keys;
+        final long[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new long[oldValues.length * 2];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,189 @@
+package org.fenixedu.spaces.migration;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Reader of the binary migration format written by {@link MigrationDataOutput}.
+ */
+class MigrationDataInput implements Closeable {
+
+    private final DataInputStream in;
+    private final List<String> dictionary = new ArrayList<>();
+    private final String kind;
+    private byte[] record = new byte[256];
+    private int position = 0;
+    private int limit = 0;
+    private long bytes = 0;
+
+    public MigrationDataInput(InputStream in, String expectedKind) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+        if (this.in.readInt() != MigrationDataOutput.MAGIC) {
+            throw new IOException("not a binary migration file");
+        }
+        final long version = readVarLong(this.in);
+        if (version != MigrationDataOutput.VERSION) {
+            throw new IOException("unsupported binary migration version " + version);
+        }
+        // the header is read straight from the stream, as a record of its own
+        final int stringTag = (int) readVarLong(this.in);
+        final byte[] utf8 = new byte[(int) readVarLong(this.in)];
+        this.in.readFully(utf8);
+        this.kind = new String(utf8, Charsets.UTF_8);
+        if (stringTag == MigrationDataOutput.STRING_DEFINITION) {
+            dictionary.add(kind);
+        }
+        if (!kind.equals(expectedKind)) {
+            throw new IOException("expected " + expectedKind + " records but found " + kind);
+        }
+    }
+
+    public String getKind() {
+        return kind;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Loads the next record, returning false at the terminator. A file that ends before it was written by an export that
+     * didn't finish, and is refused rather than read as complete.
+     */
+    public boolean nextRecord() throws IOException {
+        final long size;
+        try {
+            size = readVarLong(in);
+            if (size == 0) {
+                return false;
+            }
+            if (size > record.length) {
+                record = new byte[(int) Math.max(size, record.length * 2L)];
+            }
+            in.readFully(record, 0, (int) size);
+        } catch (EOFException e) {
+            throw new IOException("truncated " + kind + " file, the export that wrote it did not finish", e);
+        }
+        position = 0;
+        limit = (int) size;
+        bytes += size;
+        return true;
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    private int readByte() {
+        if (position >= limit) {
+            throw new IllegalStateException("read past the end of the record");
+        }
+        return record[position++] & 0xff;
+    }
+
+    public long readVarLong() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("malformed varint");
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public long readSignedVarLong() {
+        return unZigZag(readVarLong());
+    }
+
+    public String readId() {
+        final long value = readVarLong();
+        return value == 0 ? null : Long.toString(value - 1);
+    }
+
+    public Integer readInteger() {
+        final long value = readVarLong();
+        return value == 0 ? null : (int) unZigZag(value - 1);
+    }
+
+    public Boolean readBoolean() {
+        final int value = readByte();
+        return value == 0 ? null : value == 2;
+    }
+
+    public Long readDate() {
+        return readVarLong() == 0 ? null : readSignedVarLong();
+    }
+
+    public BigDecimal readDecimal() {
+        final String value = readString();
+        return value == null ? null : new BigDecimal(value);
+    }
+
+    public byte[] readBytes() {
+        final long length = readVarLong();
+        if (length == 0) {
+            return null;
+        }
+        final byte[] value = new byte[(int) length - 1];
+        checkAvailable(value.length);
+        System.arraycopy(record, position, value, 0, value.length);
+        position += value.length;
+        return value;
+    }
+
+    public String readString() {
+        final long tag = readVarLong();
+        if (tag == MigrationDataOutput.STRING_NULL) {
+            return null;
+        }
+        if (tag >= MigrationDataOutput.STRING_REFERENCE) {
+            return dictionary.get((int) (tag - MigrationDataOutput.STRING_REFERENCE));
+        }
+        final int length = (int) readVarLong();
+        checkAvailable(length);
+        final String value = new String(record, position, length, Charsets.UTF_8);
+        position += length;
+        if (tag == MigrationDataOutput.STRING_DEFINITION) {
+            dictionary.add(value);
+        }
+        return value;
+    }
+
+    private void checkAvailable(int length) {
+        if (position + length > limit) {
+            throw new IllegalStateException("read past the end of the record");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+}
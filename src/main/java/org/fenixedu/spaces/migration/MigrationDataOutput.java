@@ -0,0 +1,158 @@
+package org.fenixedu.spaces.migration;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Writer of the binary migration format: a header followed by length prefixed records and a zero length terminator.
+ * Numbers and ids are varints, dates are epoch millis, bytes are raw and short strings go through a dictionary so that
+ * repeated values are written once.
+ */
+class MigrationDataOutput implements Closeable {
+
+    static final int MAGIC = 0x46534d42;
+    static final int VERSION = 2;
+    static final int MAX_DICTIONARY_SIZE = 1 << 16;
+    static final int MAX_DICTIONARY_STRING = 64;
+
+    static final int STRING_NULL = 0;
+    static final int STRING_LITERAL = 1;
+    static final int STRING_DEFINITION = 2;
+    static final int STRING_REFERENCE = 3;
+
+    private final OutputStream out;
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private long bytes = 0;
+
+    public MigrationDataOutput(OutputStream out, String kind) throws IOException {
+        this.out = new BufferedOutputStream(out, 1 << 16);
+        writeInt(MAGIC);
+        writeVarLong(VERSION);
+        writeString(kind);
+        bytes += record.size();
+        record.writeTo(out);
+        record.reset();
+    }
+
+    public void endRecord() throws IOException {
+        if (record.size() == 0) {
+            throw new IllegalStateException("empty record");
+        }
+        writeVarLong(out, record.size());
+        bytes += record.size();
+        record.writeTo(out);
+        record.reset();
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    private void writeInt(int value) {
+        record.write(value >>> 24);
+        record.write(value >>> 16);
+        record.write(value >>> 8);
+        record.write(value);
+    }
+
+    private static void writeVarLong(OutputStream stream, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            stream.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        stream.write((int) value);
+    }
+
+    public void writeVarLong(long value) {
+        try {
+            writeVarLong(record, value);
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public void writeSignedVarLong(long value) {
+        writeVarLong(zigZag(value));
+    }
+
+    public void writeId(String externalId) {
+        writeVarLong(externalId == null ? 0 : Long.parseLong(externalId) + 1);
+    }
+
+    public void writeInteger(Integer value) {
+        writeVarLong(value == null ? 0 : zigZag(value) + 1);
+    }
+
+    public void writeBoolean(Boolean value) {
+        record.write(value == null ? 0 : value ? 2 : 1);
+    }
+
+    public void writeDate(Long millis) {
+        if (millis == null) {
+            writeVarLong(0);
+        } else {
+            writeVarLong(1);
+            writeSignedVarLong(millis);
+        }
+    }
+
+    public void writeDecimal(BigDecimal value) {
+        writeString(value == null ? null : value.toString());
+    }
+
+    public void writeBytes(byte[] value) {
+        if (value == null) {
+            writeVarLong(0);
+        } else {
+            writeVarLong(value.length + 1L);
+            record.write(value, 0, value.length);
+        }
+    }
+
+    public void writeString(String value) {
+        if (value == null) {
+            writeVarLong(STRING_NULL);
+            return;
+        }
+        final Integer reference = dictionary.get(value);
+        if (reference != null) {
+            writeVarLong(STRING_REFERENCE + reference);
+            return;
+        }
+        if (value.length() <= MAX_DICTIONARY_STRING && dictionary.size() < MAX_DICTIONARY_SIZE) {
+            dictionary.put(value, dictionary.size());
+            writeVarLong(STRING_DEFINITION);
+        } else {
+            writeVarLong(STRING_LITERAL);
+        }
+        final byte[] utf8 = value.getBytes(Charsets.UTF_8);
+        writeVarLong(utf8.length);
+        record.write(utf8, 0, utf8.length);
+    }
+
+    /**
+     * Writes the terminator that marks the file as complete. A file closed without it is refused by the reader.
+     */
+    public void finish() throws IOException {
+        writeVarLong(out, 0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+}
@@ -0,0 +1,17 @@
+package org.fenixedu.spaces.migration;
+
+enum MigrationFormat {
+
+    JSON("json"), BINARY("bin");
+
+    private final String extension;
+
+    private MigrationFormat(String extension) {
+        this.extension = extension;
+    }
+
+    public String filename(String name) {
+        return name + "." + extension;
+    }
+
+}
@@ -0,0 +1,281 @@
+package org.fenixedu.spaces.migration;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTime;
+
+import com.google.common.base.Charsets;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+
+/**
+ * Phase timings, counters and per chunk latency histograms of a migration run, safe to share between worker threads.
+ * Phases may nest, e.g. the scan of the allocations includes the conversion of each one, so their shares of the run don't
+ * add up to one. The report is a json document meant to be kept with the task output and compared between runs.
+ */
+class MigrationMetrics {
+
+    static final String FILENAME = "metrics.json";
+
+    private static class Phase {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+    }
+
+    /**
+     * Buckets of microseconds, eight per power of two, so percentiles are within an eighth of the actual value.
+     */
+    private static class Histogram {
+        private static final int SUB_BUCKETS = 8;
+        private final long[] buckets = new long[SUB_BUCKETS * 61];
+        private long count = 0;
+        private long sum = 0;
+        private long min = Long.MAX_VALUE;
+        private long max = 0;
+
+        public synchronized void add(long nanos) {
+            final long micros = Math.max(1, TimeUnit.NANOSECONDS.toMicros(nanos));
+            buckets[bucket(micros)]++;
+            count++;
+            sum += micros;
+            min = Math.min(min, micros);
+            max = Math.max(max, micros);
+        }
+
+        private static int bucket(long micros) {
+            if (micros < SUB_BUCKETS) {
+                return (int) micros;
+            }
+            final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            return SUB_BUCKETS * (exponent - 2) + (int) ((micros >>> (exponent - 3)) & (SUB_BUCKETS - 1));
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            final int shift = bucket / SUB_BUCKETS - 1;
+            return ((SUB_BUCKETS + bucket % SUB_BUCKETS + 1L) << shift) - 1;
+        }
+
+        private long percentile(double q) {
+            final long rank = (long) Math.ceil(q * count);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Math.min(max, upperBound(i));
+                }
+            }
+            return max;
+        }
+
+        public synchronized JsonObject toJson() {
+            final JsonObject json = new JsonObject();
+            json.addProperty("count", count);
+            json.addProperty("minMillis", millis(count == 0 ? 0 : min));
+            json.addProperty("meanMillis", millis(count == 0 ? 0 : sum / count));
+            json.addProperty("p50Millis", millis(percentile(0.5)));
+            json.addProperty("p90Millis", millis(percentile(0.9)));
+            json.addProperty("p99Millis", millis(percentile(0.99)));
+            json.addProperty("maxMillis", millis(max));
+            return json;
+        }
+
+        private static double millis(long micros) {
+            return micros / 1000d;
+        }
+    }
+
+    private final String task;
+    private final DateTime started = new DateTime();
+    private final long startNanos = System.nanoTime();
+    private final ConcurrentMap<String, Phase> phases = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    public MigrationMetrics(String task) {
+        this.task = task;
+    }
+
+    /**
+     * Adds the time since the given System.nanoTime() to the phase and returns it.
+     */
+    public long time(String phase, long startNanos) {
+        final long elapsed = System.nanoTime() - startNanos;
+        add(phase, elapsed);
+        return elapsed;
+    }
+
+    public void add(String phase, long nanos) {
+        Phase entry = phases.get(phase);
+        if (entry == null) {
+            final Phase created = new Phase();
+            entry = phases.putIfAbsent(phase, created);
+            if (entry == null) {
+                entry = created;
+            }
+        }
+        entry.count.incrementAndGet();
+        entry.nanos.addAndGet(nanos);
+    }
+
+    public void count(String counter, long delta) {
+        AtomicLong entry = counters.get(counter);
+        if (entry == null) {
+            final AtomicLong created = new AtomicLong();
+            entry = counters.putIfAbsent(counter, created);
+            if (entry == null) {
+                entry = created;
+            }
+        }
+        entry.addAndGet(delta);
+    }
+
+    public void sample(String histogram, long nanos) {
+        Histogram entry = histograms.get(histogram);
+        if (entry == null) {
+            final Histogram created = new Histogram();
+            entry = histograms.putIfAbsent(histogram, created);
+            if (entry == null) {
+                entry = created;
+            }
+        }
+        entry.add(nanos);
+    }
+
+    /**
+     * Counts the bytes read through the stream, adding them to the counter when it is closed.
+     */
+    public InputStream countBytes(final String counter, InputStream in) {
+        return new FilterInputStream(in) {
+
+            private long bytes = 0;
+
+            @Override
+            public int read() throws IOException {
+                final int b = super.read();
+                if (b >= 0) {
+                    bytes++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                final int n = super.read(b, off, len);
+                if (n > 0) {
+                    bytes += n;
+                }
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                super.close();
+                count(counter, bytes);
+                bytes = 0;
+            }
+
+        };
+    }
+
+    /**
+     * Counts the bytes written through the stream, adding them to the counter when it is closed.
+     */
+    public OutputStream countBytes(final String counter, OutputStream out) {
+        return new FilterOutputStream(out) {
+
+            private long bytes = 0;
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytes++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytes += len;
+            }
+
+            @Override
+            public void close() throws IOException {
+                super.close();
+                count(counter, bytes);
+                bytes = 0;
+            }
+
+        };
+    }
+
+    public JsonObject toJson() {
+        final long elapsed = System.nanoTime() - startNanos;
+        final JsonObject json = new JsonObject();
+        json.addProperty("task", task);
+        json.addProperty("started", started.toString());
+        json.addProperty("elapsedMillis", TimeUnit.NANOSECONDS.toMillis(elapsed));
+
+        final JsonObject phasesJson = new JsonObject();
+        for (Map.Entry<String, Phase> entry : new TreeMap<>(phases).entrySet()) {
+            final long nanos = entry.getValue().nanos.get();
+            final JsonObject phase = new JsonObject();
+            phase.addProperty("count", entry.getValue().count.get());
+            phase.addProperty("millis", TimeUnit.NANOSECONDS.toMillis(nanos));
+            phase.addProperty("share", elapsed == 0 ? 0 : Math.round(nanos * 1000d / elapsed) / 1000d);
+            phasesJson.add(entry.getKey(), phase);
+        }
+        json.add("phases", phasesJson);
+
+        final JsonObject countersJson = new JsonObject();
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<>(counters).entrySet()) {
+            countersJson.addProperty(entry.getKey(), entry.getValue().get());
+        }
+        json.add("counters", countersJson);
+
+        final JsonObject histogramsJson = new JsonObject();
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            histogramsJson.add(entry.getKey(), entry.getValue().toJson());
+        }
+        json.add("histograms", histogramsJson);
+        return json;
+    }
+
+    public byte[] report() {
+        return new GsonBuilder().setPrettyPrinting().create().toJson(toJson()).getBytes(Charsets.UTF_8);
+    }
+
+    /**
+     * One line per phase, slowest first, for the task log.
+     */
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append(String.format("%s metrics, %d ms\n", task, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)));
+        final TreeMap<Long, String> byTime = new TreeMap<>();
+        for (Map.Entry<String, Phase> entry : phases.entrySet()) {
+            long nanos = entry.getValue().nanos.get();
+            while (byTime.containsKey(nanos)) {
+                nanos++;
+            }
+            byTime.put(nanos, entry.getKey());
+        }
+        for (Map.Entry<Long, String> entry : byTime.descendingMap().entrySet()) {
+            builder.append(String.format("  %s: %d ms in %d\n", entry.getValue(), TimeUnit.NANOSECONDS.toMillis(entry.getKey()),
+                    phases.get(entry.getValue()).count.get()));
+        }
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,171 @@
+package org.fenixedu.spaces.migration;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.joda.time.DateTimeConstants;
+import org.joda.time.DateTimeZone;
+import org.joda.time.IllegalInstantException;
+import org.joda.time.Interval;
+import org.joda.time.LocalDate;
+import org.joda.time.LocalTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+/**
+ * Recurrence rule of a generic event, as exported with each occupation: a frequency, a date range, a time of day and
+ * whether weekends are included. Both the export and the import expand it with this class, so an occupation only needs
+ * to carry the intervals that differ from its rule. The dates and times are local to the zone recorded with the rule, so
+ * the expansion doesn't depend on the zone of the machine running it.
+ */
+final class OccupationRecurrence {
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormat.forPattern("dd/MM/yyyy");
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormat.forPattern("HH:mm:ss");
+    // no event spans this many days, anything longer is treated as not expandable
+    private static final int MAX_DAYS = 366 * 20;
+
+    private final int step;
+    private final LocalDate begin;
+    private final LocalDate end;
+    private final LocalTime beginTime;
+    private final LocalTime endTime;
+    private final boolean saturday;
+    private final boolean sunday;
+    private final DateTimeZone zone;
+
+    private OccupationRecurrence(int step, LocalDate begin, LocalDate end, LocalTime beginTime, LocalTime endTime,
+            boolean saturday, boolean sunday, DateTimeZone zone) {
+        this.step = step;
+        this.begin = begin;
+        this.end = end;
+        this.beginTime = beginTime;
+        this.endTime = endTime;
+        this.saturday = saturday;
+        this.sunday = sunday;
+        this.zone = zone;
+    }
+
+    /**
+     * Reads a rule from the exported fields, returning null when they don't describe one that can be expanded.
+     */
+    public static OccupationRecurrence parse(String frequency, String beginDate, String endDate, String beginTime,
+            String endTime, Boolean saturday, Boolean sunday, DateTimeZone zone) {
+        final int step = step(frequency);
+        if (step == 0 || beginDate == null || endDate == null || beginTime == null || endTime == null) {
+            return null;
+        }
+        final LocalDate begin = DATE_FORMAT.parseLocalDate(beginDate);
+        final LocalDate end = DATE_FORMAT.parseLocalDate(endDate);
+        final LocalTime from = TIME_FORMAT.parseLocalTime(beginTime);
+        final LocalTime until = TIME_FORMAT.parseLocalTime(endTime);
+        if (end.isBefore(begin) || !from.isBefore(until) || begin.plusDays(MAX_DAYS).isBefore(end)) {
+            return null;
+        }
+        return new OccupationRecurrence(step, begin, end, from, until, Boolean.TRUE.equals(saturday),
+                Boolean.TRUE.equals(sunday), zone);
+    }
+
+    private static int step(String frequency) {
+        if (frequency == null) {
+            return 0;
+        }
+        switch (frequency) {
+        case "DAILY":
+            return 1;
+        case "WEEKLY":
+            return 7;
+        case "BIWEEKLY":
+            return 14;
+        default:
+            return 0;
+        }
+    }
+
+    public List<Interval> expand() {
+        final List<Interval> intervals = new ArrayList<>();
+        for (LocalDate day = begin; !day.isAfter(end); day = day.plusDays(step)) {
+            if (step == 1 && !includes(day)) {
+                continue;
+            }
+            try {
+                intervals.add(new Interval(day.toLocalDateTime(beginTime).toDateTime(zone), day.toLocalDateTime(endTime)
+                        .toDateTime(zone)));
+            } catch (IllegalInstantException e) {
+                // falls in a daylight saving gap, the export keeps the actual interval as an additional one
+            }
+        }
+        return intervals;
+    }
+
+    private boolean includes(LocalDate day) {
+        switch (day.getDayOfWeek()) {
+        case DateTimeConstants.SATURDAY:
+            return saturday;
+        case DateTimeConstants.SUNDAY:
+            return sunday;
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * The intervals of the rule that are missing from the given ones.
+     */
+    public List<Interval> excluded(Collection<Interval> actual) {
+        final Set<Interval> present = normalize(actual);
+        final List<Interval> excluded = new ArrayList<>();
+        for (Interval interval : expand()) {
+            if (!present.contains(normalize(interval))) {
+                excluded.add(interval);
+            }
+        }
+        return excluded;
+    }
+
+    /**
+     * The given intervals that the rule does not produce.
+     */
+    public List<Interval> additional(Collection<Interval> actual) {
+        final Set<Interval> expected = normalize(expand());
+        final List<Interval> additional = new ArrayList<>();
+        for (Interval interval : actual) {
+            if (!expected.contains(normalize(interval))) {
+                additional.add(interval);
+            }
+        }
+        return additional;
+    }
+
+    /**
+     * Expands the rule, drops the excluded intervals and adds the additional ones.
+     */
+    public List<Interval> apply(Collection<Interval> excluded, Collection<Interval> additional) {
+        final Set<Interval> dropped = normalize(excluded);
+        final List<Interval> intervals = new ArrayList<>();
+        for (Interval interval : expand()) {
+            if (!dropped.contains(normalize(interval))) {
+                intervals.add(interval);
+            }
+        }
+        intervals.addAll(additional);
+        return intervals;
+    }
+
+    // intervals only compare equal with the same chronology, the rule is matched on instants alone
+    private static Interval normalize(Interval interval) {
+        return new Interval(interval.getStartMillis(), interval.getEndMillis());
+    }
+
+    private static Set<Interval> normalize(Collection<Interval> intervals) {
+        final Set<Interval> normalized = new HashSet<>();
+        for (Interval interval : intervals) {
+            normalized.add(normalize(interval));
+        }
+        return normalized;
+    }
+
+}
@@ -0,0 +1,190 @@
+package org.fenixedu.spaces.migration;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Splits the stream in fixed size blocks and deflates them on an executor, each block becoming an independent gzip
+ * member. Members are written in order, so the result is a regular multi member gzip file that {@link GZIPInputStream}
+ * reads back sequentially.
+ */
+class ParallelGzipOutputStream extends OutputStream {
+
+    static final String SUFFIX = ".gz";
+    static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+    private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final int level;
+    private final int blockSize;
+    private final int maxPending;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private byte[] block;
+    private int count = 0;
+    private long uncompressed = 0;
+    private long compressed = 0;
+    private boolean closed = false;
+
+    public ParallelGzipOutputStream(OutputStream out, ExecutorService executor, int level, int blockSize, int maxPending) {
+        this.out = out;
+        this.executor = executor;
+        this.level = level;
+        this.blockSize = blockSize;
+        this.maxPending = maxPending;
+        this.block = new byte[blockSize];
+    }
+
+    public static boolean isCompressed(String filename) {
+        return filename.endsWith(SUFFIX);
+    }
+
+    public static InputStream open(InputStream in) throws IOException {
+        return new GZIPInputStream(in, 1 << 16);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[count++] = (byte) b;
+        if (count == blockSize) {
+            submit();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            final int chunk = Math.min(len, blockSize - count);
+            System.arraycopy(b, off, block, count, chunk);
+            count += chunk;
+            off += chunk;
+            len -= chunk;
+            if (count == blockSize) {
+                submit();
+            }
+        }
+    }
+
+    private void submit() throws IOException {
+        pending.add(executor.submit(new Member(block, count, level)));
+        uncompressed += count;
+        block = new byte[blockSize];
+        count = 0;
+        while (pending.size() > maxPending) {
+            writeNext();
+        }
+    }
+
+    private void writeNext() throws IOException {
+        final byte[] member;
+        try {
+            member = pending.poll().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw new IOException("error compressing block", e.getCause());
+        }
+        out.write(member);
+        compressed += member.length;
+    }
+
+    /**
+     * Only pushes the members that are already compressed, a partial block is kept until it fills up or the stream is
+     * closed so that frequent flushes don't degrade into tiny members.
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!pending.isEmpty() && pending.peek().isDone()) {
+            writeNext();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (count > 0) {
+                submit();
+            }
+            while (!pending.isEmpty()) {
+                writeNext();
+            }
+        } finally {
+            for (Future<byte[]> future : pending) {
+                future.cancel(true);
+            }
+            out.close();
+        }
+    }
+
+    public long getUncompressed() {
+        return uncompressed;
+    }
+
+    public long getCompressed() {
+        return compressed;
+    }
+
+    private static class Member implements Callable<byte[]> {
+
+        private final byte[] data;
+        private final int length;
+        private final int level;
+
+        public Member(byte[] data, int length, int level) {
+            this.data = data;
+            this.length = length;
+            this.level = level;
+        }
+
+        @Override
+        public byte[] call() {
+            final ByteArrayOutputStream member = new ByteArrayOutputStream(length / 4 + 64);
+            member.write(HEADER, 0, HEADER.length);
+            final Deflater deflater = new Deflater(level, true);
+            try {
+                deflater.setInput(data, 0, length);
+                deflater.finish();
+                final byte[] buffer = new byte[1 << 16];
+                while (!deflater.finished()) {
+                    final int n = deflater.deflate(buffer);
+                    member.write(buffer, 0, n);
+                }
+            } finally {
+                deflater.end();
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(data, 0, length);
+            writeIntLE(member, (int) crc.getValue());
+            writeIntLE(member, length);
+            return member.toByteArray();
+        }
+
+        private static void writeIntLE(ByteArrayOutputStream out, int value) {
+            out.write(value);
+            out.write(value >>> 8);
+            out.write(value >>> 16);
+            out.write(value >>> 24);
+        }
+
+    }
+
+}
@@ -0,0 +1,40 @@
+package org.fenixedu.spaces.migration;
+
+import java.io.Closeable;
+import java.util.NoSuchElementException;
+
+import com.google.common.collect.UnmodifiableIterator;
+
+abstract class RecordReader<T> extends UnmodifiableIterator<T> implements Closeable {
+
+    private int count = 0;
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        count++;
+        return read();
+    }
+
+    /**
+     * Moves past the next record without decoding it.
+     */
+    public void skip() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        count++;
+        skipRecord();
+    }
+
+    protected abstract T read();
+
+    protected abstract void skipRecord();
+
+    public int getCount() {
+        return count;
+    }
+
+}
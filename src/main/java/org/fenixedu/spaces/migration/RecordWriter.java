@@ -0,0 +1,52 @@
+package org.fenixedu.spaces.migration;
+
+import java.io.Closeable;
+
+abstract class RecordWriter<T> implements BeanSink<T>, Closeable {
+
+    private int count = 0;
+    private boolean finished = false;
+    private MigrationMetrics metrics;
+    private String kind;
+
+    /**
+     * Reports the time spent writing each record, and the number of records, to the metrics under the given kind.
+     */
+    public RecordWriter<T> measure(MigrationMetrics metrics, String kind) {
+        this.metrics = metrics;
+        this.kind = kind;
+        return this;
+    }
+
+    @Override
+    public void accept(T bean) {
+        if (metrics == null) {
+            write(bean);
+        } else {
+            final long start = System.nanoTime();
+            write(bean);
+            metrics.time(kind + ".write", start);
+            metrics.count(kind + ".records", 1);
+        }
+        count++;
+    }
+
+    protected abstract void write(T bean);
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Marks every record as written. Closing a writer that was not finished, e.g. on an exception, leaves an output the
+     * import refuses instead of a truncated one that looks complete.
+     */
+    public void finish() {
+        finished = true;
+    }
+
+    protected boolean isFinished() {
+        return finished;
+    }
+
+}
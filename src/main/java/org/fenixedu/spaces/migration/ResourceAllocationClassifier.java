@@ -0,0 +1,88 @@
+package org.fenixedu.spaces.migration;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sourceforge.fenixedu.domain.resource.ResourceAllocation;
+
+import org.fenixedu.bennu.core.domain.Bennu;
+
+/**
+ * Walks the resource allocations once, handing each one to the consumers registered for its kind.
+ */
+class ResourceAllocationClassifier {
+
+    enum Kind {
+        GENERIC_EVENT, LESSON, LESSON_INSTANCE, WRITTEN_EVALUATION
+    }
+
+    interface AllocationConsumer {
+
+        void accept(Kind kind, ResourceAllocation allocation);
+
+    }
+
+    private final Map<Kind, List<AllocationConsumer>> consumers = new EnumMap<>(Kind.class);
+    private final Map<Kind, Integer> counts = new EnumMap<>(Kind.class);
+    private int scanned = 0;
+
+    public ResourceAllocationClassifier() {
+        for (Kind kind : Kind.values()) {
+            consumers.put(kind, new ArrayList<AllocationConsumer>());
+            counts.put(kind, 0);
+        }
+    }
+
+    public ResourceAllocationClassifier register(AllocationConsumer consumer, Kind... kinds) {
+        for (Kind kind : kinds) {
+            consumers.get(kind).add(consumer);
+        }
+        return this;
+    }
+
+    public static Kind classify(ResourceAllocation allocation) {
+        if (allocation.isGenericEventSpaceOccupation()) {
+            return Kind.GENERIC_EVENT;
+        }
+        if (allocation.isLessonInstanceSpaceOccupation()) {
+            return Kind.LESSON_INSTANCE;
+        }
+        if (allocation.isLessonSpaceOccupation()) {
+            return Kind.LESSON;
+        }
+        if (allocation.isWrittenEvaluationSpaceOccupation()) {
+            return Kind.WRITTEN_EVALUATION;
+        }
+        return null;
+    }
+
+    public void run() {
+        for (ResourceAllocation allocation : Bennu.getInstance().getResourceAllocationsSet()) {
+            scanned++;
+            final Kind kind = classify(allocation);
+            if (kind == null) {
+                continue;
+            }
+            counts.put(kind, counts.get(kind) + 1);
+            for (AllocationConsumer consumer : consumers.get(kind)) {
+                consumer.accept(kind, allocation);
+            }
+        }
+    }
+
+    public int getScanned() {
+        return scanned;
+    }
+
+    public int getCount(Kind kind) {
+        return counts.get(kind);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("scanned %d allocations %s", scanned, counts);
+    }
+
+}
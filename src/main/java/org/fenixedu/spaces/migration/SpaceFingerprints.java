@@ -0,0 +1,145 @@
+package org.fenixedu.spaces.migration;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Manifest of every exported space with its parent and a fingerprint of its exported content. Comparing the manifest of
+ * the previous export with the current one tells which spaces are new, changed or gone.
+ */
+class SpaceFingerprints {
+
+    static final String FILENAME = "spaces-fingerprints.json";
+
+    private static class Entry {
+        public String parent;
+        public String fingerprint;
+
+        public Entry(String parent, String fingerprint) {
+            this.parent = parent;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    private static class ManifestBean {
+        public Map<String, Entry> spaces;
+    }
+
+    private final Map<String, Entry> spaces;
+
+    public SpaceFingerprints() {
+        this(new TreeMap<String, Entry>());
+    }
+
+    private SpaceFingerprints(Map<String, Entry> spaces) {
+        this.spaces = spaces;
+    }
+
+    public static SpaceFingerprints read(Gson gson, File file) throws IOException {
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), Charsets.UTF_8)) {
+            final ManifestBean manifest = gson.fromJson(reader, ManifestBean.class);
+            return new SpaceFingerprints(new TreeMap<>(manifest.spaces));
+        }
+    }
+
+    public synchronized void write(Gson gson, OutputStream out) throws IOException {
+        final ManifestBean manifest = new ManifestBean();
+        manifest.spaces = spaces;
+        try (Writer writer = new OutputStreamWriter(out, Charsets.UTF_8)) {
+            gson.toJson(manifest, writer);
+        }
+    }
+
+    /**
+     * Hashes the json form of a space bean. Informations and blueprints are exported from unordered sets, so their
+     * elements are sorted first to keep the fingerprint stable between runs.
+     */
+    public static String fingerprint(JsonObject bean) {
+        final Hasher hasher = Hashing.sha1().newHasher();
+        for (Map.Entry<String, JsonElement> member : bean.entrySet()) {
+            hasher.putString(member.getKey(), Charsets.UTF_8).putByte((byte) 0);
+            if (member.getValue().isJsonArray()) {
+                final List<String> elements = new ArrayList<>();
+                for (JsonElement element : member.getValue().getAsJsonArray()) {
+                    elements.add(element.toString());
+                }
+                Collections.sort(elements);
+                for (String element : elements) {
+                    hasher.putString(element, Charsets.UTF_8).putByte((byte) 0);
+                }
+            } else {
+                hasher.putString(member.getValue().toString(), Charsets.UTF_8).putByte((byte) 0);
+            }
+        }
+        return hasher.hash().toString();
+    }
+
+    public synchronized void put(String externalId, String parentExternalId, String fingerprint) {
+        spaces.put(externalId, new Entry(parentExternalId, fingerprint));
+    }
+
+    public synchronized boolean contains(String externalId) {
+        return spaces.containsKey(externalId);
+    }
+
+    public synchronized String getFingerprint(String externalId) {
+        final Entry entry = spaces.get(externalId);
+        return entry == null ? null : entry.fingerprint;
+    }
+
+    public synchronized int size() {
+        return spaces.size();
+    }
+
+    public synchronized int depth(String externalId) {
+        int depth = 0;
+        Entry entry = spaces.get(externalId);
+        while (entry != null && entry.parent != null && depth <= spaces.size()) {
+            entry = spaces.get(entry.parent);
+            depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * The spaces of a previous manifest that no longer exist, children before their parents so they can be deleted in
+     * order.
+     */
+    public synchronized List<String> removedSince(final SpaceFingerprints previous) {
+        final List<String> removed = new ArrayList<>();
+        for (String externalId : previous.spaces.keySet()) {
+            if (!spaces.containsKey(externalId)) {
+                removed.add(externalId);
+            }
+        }
+        Collections.sort(removed, new Comparator<String>() {
+
+            @Override
+            public int compare(String a, String b) {
+                return Integer.compare(previous.depth(b), previous.depth(a));
+            }
+
+        });
+        return removed;
+    }
+
+}
@@ -1,8 +1,22 @@
 package org.fenixedu.spaces.migration;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 
 import net.sourceforge.fenixedu.domain.GenericEvent;
 import net.sourceforge.fenixedu.domain.Person;
@@ -21,14 +35,23 @@ import net.sourceforge.fenixedu.domain.space.SpaceInformation;
 
 import org.fenixedu.bennu.core.domain.Bennu;
 import org.fenixedu.bennu.scheduler.custom.CustomTask;
+import org.fenixedu.spaces.migration.BinaryRecordWriter.RecordEncoder;
+import org.fenixedu.spaces.migration.ResourceAllocationClassifier.AllocationConsumer;
+import org.fenixedu.spaces.migration.ResourceAllocationClassifier.Kind;
+import org.joda.time.DateTimeZone;
 import org.joda.time.Interval;
 import org.joda.time.YearMonthDay;
 
+import pt.ist.fenixframework.Atomic.TxMode;
+import pt.ist.fenixframework.FenixFramework;
+import pt.ist.fenixframework.atomic.AtomicInstance;
 import pt.utl.ist.fenix.tools.util.i18n.Language;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Function;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 import com.google.common.io.BaseEncoding;
@@ -38,10 +61,38 @@ import com.google.gson.GsonBuilder;
 @SuppressWarnings("unused")
 public class SpaceMigrationTask extends CustomTask {
 
+    private static final boolean STREAMING = true;
+    private static final boolean BLUEPRINT_PACK = true;
+    private static final boolean PARALLEL = false;
+    private static final int EXPORT_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int SHARD_SIZE = 2000;
+    private static final String EXPORT_URL = "/home/sfbs/Documents/fenix-spaces/export";
+    private static final MigrationFormat FORMAT = MigrationFormat.JSON;
+    private static final boolean COMPRESS = false;
+    private static final int COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+    private static final int COMPRESSION_THREADS = Runtime.getRuntime().availableProcessors();
+    // fingerprints manifest of the export to diff against, null for a full export
+    private static final String PREVIOUS_FINGERPRINTS = null;
+    // write the fingerprints manifest a later delta export can diff against, always done for a delta export
+    private static final boolean FINGERPRINTS = false;
+    // export generic events as their recurrence rule plus exceptions instead of every interval
+    private static final boolean RECURRENCE = true;
+    // the zone the legacy dates and times of the generic events are local to, recorded with every recurrent occupation
+    private static final DateTimeZone RECURRENCE_ZONE = DateTimeZone.forID("Europe/Lisbon");
+
+    private BlueprintPack.Writer blueprintPack;
+    private ExecutorService compressionExecutor;
+    private SpaceFingerprints fingerprints;
+    private MigrationMetrics metrics;
+
     private static String dealWithDates(YearMonthDay yearMonthDay) {
         return yearMonthDay == null ? null : yearMonthDay.toString("dd/MM/yyyy");
     }
 
+    private static Long dealWithMillis(YearMonthDay yearMonthDay) {
+        return yearMonthDay == null ? null : yearMonthDay.toDateTimeAtMidnight().getMillis();
+    }
+
     private class SpaceBean {
 
         public String parentExternalId;
@@ -56,18 +107,35 @@ public class SpaceMigrationTask extends CustomTask {
         private String writtenEvaluationOccupationsAccessGroup;
         public Set<SpaceInformationBean> informations;
         public Set<BlueprintBean> blueprints;
+        private transient Long createdOnMillis;
 
         private class BlueprintBean {
             public String validFrom;
             public String validUntil;
             public String creationPerson;
             public String raw;
+            public String hash;
+            private transient Long validFromMillis;
+            private transient Long validUntilMillis;
+            private transient byte[] content;
 
             public BlueprintBean(Blueprint blueprint) {
                 this.validFrom = dealWithDates(blueprint.getValidFrom());
                 this.validUntil = dealWithDates(blueprint.getValidUntil());
+                this.validFromMillis = dealWithMillis(blueprint.getValidFrom());
+                this.validUntilMillis = dealWithMillis(blueprint.getValidUntil());
                 this.creationPerson = dealWithPerson(blueprint.getCreationPerson());
-                this.raw = BaseEncoding.base64().encode(blueprint.getBlueprintFile().getContent());
+                final byte[] content = blueprint.getBlueprintFile().getContent();
+                if (blueprintPack != null) {
+                    this.hash = storeBlueprint(content);
+                } else {
+                    this.hash = BlueprintPack.hash(content);
+                    if (FORMAT == MigrationFormat.BINARY) {
+                        this.content = content;
+                    } else {
+                        this.raw = BaseEncoding.base64().encode(content);
+                    }
+                }
             }
 
             private String dealWithPerson(Person creationPerson) {
@@ -99,6 +167,8 @@ public class SpaceMigrationTask extends CustomTask {
             public Boolean securityQuality;
             public String classificationCode;
             public String name;
+            private transient Long validFromMillis;
+            private transient Long validUntilMillis;
 
             public SpaceInformationBean(SpaceInformation info) {
                 super();
@@ -106,6 +176,8 @@ public class SpaceMigrationTask extends CustomTask {
                 this.blueprintNumber = info.getBlueprintNumber();
                 this.validFrom = dealWithDates(info.getValidFrom());
                 this.validUntil = dealWithDates(info.getValidUntil());
+                this.validFromMillis = dealWithMillis(info.getValidFrom());
+                this.validUntilMillis = dealWithMillis(info.getValidUntil());
                 this.emails = info.getEmails();
                 if (info instanceof RoomInformation) {
                     this.ageQuality = ((RoomInformation) info).getAgeQuality();
@@ -189,6 +261,7 @@ public class SpaceMigrationTask extends CustomTask {
 
             this.externalId = space.getExternalId();
             this.createdOn = dealWithDates(space.getCreatedOn());
+            this.createdOnMillis = dealWithMillis(space.getCreatedOn());
             this.examCapacity = space.getExamCapacity();
             this.normalCapacity = space.getNormalCapacity();
             this.type = space.getClass().getSimpleName();
@@ -210,6 +283,8 @@ public class SpaceMigrationTask extends CustomTask {
     private static class IntervalBean {
         public String start;
         public String end;
+        private transient long startMillis;
+        private transient long endMillis;
 
         public IntervalBean(String start, String end) {
             super();
@@ -217,6 +292,12 @@ public class SpaceMigrationTask extends CustomTask {
             this.end = end;
         }
 
+        public IntervalBean(Interval interval) {
+            this(interval.getStart().toString("dd/MM/yyyy HH:mm:ss"), interval.getEnd().toString("dd/MM/yyyy HH:mm:ss"));
+            this.startMillis = interval.getStartMillis();
+            this.endMillis = interval.getEndMillis();
+        }
+
     }
 
     private static class EventSpaceOccupationBean {
@@ -243,6 +324,12 @@ public class SpaceMigrationTask extends CustomTask {
         public Boolean sunday;
         public Set<IntervalBean> intervals;
         public Set<String> spaces;
+        // when set, intervals only holds the ones the rule does not produce and excluded the ones it produces in excess
+        public Boolean recurrent;
+        public Set<IntervalBean> excluded;
+        public String zone;
+        private transient Long beginDateMillis;
+        private transient Long endDateMillis;
 
         public OccupationBean(String description, String title, String frequency, String beginDate, String endDate,
                 String beginTime, String endTime, Boolean saturday, Boolean sunday, Set<String> spaces,
@@ -264,26 +351,62 @@ public class SpaceMigrationTask extends CustomTask {
     }
 
     private Set<EventSpaceOccupationBean> getEventSpaceOccupations() {
-        taskLog("total occupations %d\n", Bennu.getInstance().getResourceAllocationsSet().size());
         final Set<EventSpaceOccupationBean> eventSpaceOccupations = new HashSet<>();
+        collectEventSpaceOccupations(new BeanSink<EventSpaceOccupationBean>() {
 
-        for (ResourceAllocation resourceAllocation : Bennu.getInstance().getResourceAllocationsSet()) {
-            if (resourceAllocation.isWrittenEvaluationSpaceOccupation() || resourceAllocation.isLessonInstanceSpaceOccupation()
-                    || resourceAllocation.isLessonSpaceOccupation()) {
-                eventSpaceOccupations.add(new EventSpaceOccupationBean(resourceAllocation.getExternalId(), resourceAllocation
-                        .getResource().getExternalId()));
+            @Override
+            public void accept(EventSpaceOccupationBean bean) {
+                eventSpaceOccupations.add(bean);
             }
-        }
+
+        });
         return eventSpaceOccupations;
     }
 
+    private void collectEventSpaceOccupations(BeanSink<EventSpaceOccupationBean> sink) {
+        final ResourceAllocationClassifier classifier = new ResourceAllocationClassifier();
+        classifier.register(toEventSpaceOccupationBeans(sink), Kind.WRITTEN_EVALUATION, Kind.LESSON_INSTANCE, Kind.LESSON);
+        runClassifier(classifier);
+    }
+
+    private AllocationConsumer toEventSpaceOccupationBeans(final BeanSink<EventSpaceOccupationBean> sink) {
+        return new AllocationConsumer() {
+
+            @Override
+            public void accept(Kind kind, ResourceAllocation resourceAllocation) {
+                sink.accept(new EventSpaceOccupationBean(resourceAllocation.getExternalId(), resourceAllocation.getResource()
+                        .getExternalId()));
+            }
+
+        };
+    }
+
     private Set<OccupationBean> getOccupations() {
-        int i = 0;
-        taskLog("total occupations %d\n", Bennu.getInstance().getResourceAllocationsSet().size());
         final Set<OccupationBean> eventsOccupations = new HashSet<>();
+        collectOccupations(new BeanSink<OccupationBean>() {
 
-        for (ResourceAllocation resourceAllocation : Bennu.getInstance().getResourceAllocationsSet()) {
-            if (resourceAllocation.isGenericEventSpaceOccupation()) {
+            @Override
+            public void accept(OccupationBean bean) {
+                eventsOccupations.add(bean);
+            }
+
+        });
+        return eventsOccupations;
+    }
+
+    private void collectOccupations(BeanSink<OccupationBean> sink) {
+        final ResourceAllocationClassifier classifier = new ResourceAllocationClassifier();
+        classifier.register(toOccupationBeans(sink), Kind.GENERIC_EVENT);
+        runClassifier(classifier);
+    }
+
+    private AllocationConsumer toOccupationBeans(final BeanSink<OccupationBean> sink) {
+        return new AllocationConsumer() {
+
+            private int i = 0;
+
+            @Override
+            public void accept(Kind kind, ResourceAllocation resourceAllocation) {
                 GenericEventSpaceOccupation occupation = (GenericEventSpaceOccupation) resourceAllocation;
                 final GenericEvent genericEvent = occupation.getGenericEvent();
                 if (genericEvent != null) {
@@ -297,36 +420,233 @@ public class SpaceMigrationTask extends CustomTask {
                     Boolean saturday = genericEvent.getDailyFrequencyMarkSaturday();
                     Boolean sunday = genericEvent.getDailyFrequencyMarkSunday();
                     Set<String> spaces = new HashSet<>();
-                    Set<IntervalBean> intervals = new HashSet<>();
                     for (AllocatableSpace space : genericEvent.getAssociatedRooms()) {
                         spaces.add(space.getExternalId());
                     }
 
-                    for (Interval interval : occupation
-                            .getEventSpaceOccupationIntervals((YearMonthDay) null, (YearMonthDay) null)) {
-                        final String start = interval.getStart().toString("dd/MM/yyyy HH:mm:ss");
-                        final String end = interval.getEnd().toString("dd/MM/yyyy HH:mm:ss");
-                        intervals.add(new IntervalBean(start, end));
+                    final long start = System.nanoTime();
+                    final List<Interval> actual =
+                            occupation.getEventSpaceOccupationIntervals((YearMonthDay) null, (YearMonthDay) null);
+                    final OccupationRecurrence recurrence =
+                            RECURRENCE ? OccupationRecurrence.parse(frequency, beginDate, endDate, beginTime, endTime,
+                                    saturday, sunday, RECURRENCE_ZONE) : null;
+                    List<Interval> additional = actual;
+                    List<Interval> excluded = null;
+                    if (recurrence != null) {
+                        additional = recurrence.additional(actual);
+                        excluded = recurrence.excluded(actual);
+                        if (additional.size() + excluded.size() >= actual.size()) {
+                            additional = actual;
+                            excluded = null;
+                        }
                     }
 
-                    eventsOccupations.add(new OccupationBean(description, title, frequency, beginDate, endDate, beginTime,
-                            endTime, saturday, sunday, spaces, intervals));
+                    final OccupationBean bean =
+                            new OccupationBean(description, title, frequency, beginDate, endDate, beginTime, endTime, saturday,
+                                    sunday, spaces, toIntervalBeans(additional));
+                    if (excluded != null) {
+                        bean.recurrent = true;
+                        bean.excluded = toIntervalBeans(excluded);
+                        bean.zone = RECURRENCE_ZONE.getID();
+                    }
+                    bean.beginDateMillis = dealWithMillis(genericEvent.getBeginDate());
+                    bean.endDateMillis = dealWithMillis(genericEvent.getEndDate());
+                    metrics.time("occupations.convert", start);
+                    sink.accept(bean);
                     if (i++ % 100 == 0) {
                         taskLog("processing occupation %d\n", i);
                     }
                 }
             }
+
+        };
+    }
+
+    private static Set<IntervalBean> toIntervalBeans(List<Interval> intervals) {
+        final Set<IntervalBean> beans = new HashSet<>();
+        for (Interval interval : intervals) {
+            beans.add(new IntervalBean(interval));
         }
-        return eventsOccupations;
+        return beans;
+    }
+
+    private void runClassifier(ResourceAllocationClassifier classifier) {
+        final long start = System.nanoTime();
+        classifier.run();
+        metrics.time("allocations.scan", start);
+        metrics.count("allocations.scanned", classifier.getScanned());
+        taskLog("total occupations %d\n", classifier.getScanned());
+        taskLog("%s\n", classifier);
     }
 
     @Override
     public void runTask() throws Exception {
         Gson gson = new GsonBuilder().setPrettyPrinting().serializeNulls().create();
-//        dumpSpaces(gson);
-//        dumpOccupations(gson);
-//        dumpClassifications(gson);
-        dumpEventSpaceOccupations(gson);
+        metrics = new MigrationMetrics("export");
+        try {
+//            dumpSpaces(gson);
+//            dumpClassifications(gson);
+            dumpAllocations(gson);
+        } finally {
+            if (compressionExecutor != null) {
+                compressionExecutor.shutdownNow();
+            }
+            taskLog("%s", metrics);
+            output(MigrationMetrics.FILENAME, metrics.report());
+        }
+    }
+
+    private static String exportFilename(String name) {
+        final String filename = FORMAT.filename(name);
+        return COMPRESS ? filename + ParallelGzipOutputStream.SUFFIX : filename;
+    }
+
+    private synchronized ExecutorService getCompressionExecutor() {
+        if (compressionExecutor == null) {
+            compressionExecutor = Executors.newFixedThreadPool(COMPRESSION_THREADS);
+        }
+        return compressionExecutor;
+    }
+
+    private OutputStream compressed(OutputStream out) {
+        if (!COMPRESS) {
+            return out;
+        }
+        return new ParallelGzipOutputStream(out, getCompressionExecutor(), COMPRESSION_LEVEL,
+                ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE, COMPRESSION_THREADS * 2);
+    }
+
+    private File getExportDir() throws IOException {
+        final File exportDir = new File(EXPORT_URL);
+        if (!exportDir.exists() && !exportDir.mkdirs()) {
+            throw new IOException("can't create export dir " + EXPORT_URL);
+        }
+        return exportDir;
+    }
+
+    private <T> RecordWriter<T> newWriter(Gson gson, String kind, Class<T> type, RecordEncoder<T> encoder, OutputStream out)
+            throws IOException {
+        if (FORMAT == MigrationFormat.BINARY) {
+            return new BinaryRecordWriter<T>(kind, encoder, out).measure(metrics, kind);
+        }
+        return new JsonArrayWriter<T>(gson, type, out).measure(metrics, kind);
+    }
+
+    private <T> RecordWriter<T> openWriter(Gson gson, String kind, Class<T> type, RecordEncoder<T> encoder)
+            throws IOException {
+        return newWriter(gson, kind, type, encoder, compressed(openExport(exportFilename(kind))));
+    }
+
+    private final RecordEncoder<SpaceBean> spaceEncoder = new RecordEncoder<SpaceBean>() {
+
+        @Override
+        public void encode(SpaceBean bean, MigrationDataOutput out) {
+            out.writeId(bean.parentExternalId);
+            out.writeId(bean.externalId);
+            out.writeDate(bean.createdOnMillis);
+            out.writeInteger(bean.examCapacity);
+            out.writeInteger(bean.normalCapacity);
+            out.writeString(bean.type);
+            out.writeString(bean.occupationGroup);
+            out.writeString(bean.managementSpaceGroup);
+            out.writeString(bean.lessonOccupationsAccessGroup);
+            out.writeString(bean.writtenEvaluationOccupationsAccessGroup);
+            out.writeVarLong(bean.informations.size());
+            for (SpaceBean.SpaceInformationBean info : bean.informations) {
+                out.writeInteger(info.capacity);
+                out.writeString(info.blueprintNumber);
+                out.writeDate(info.validFromMillis);
+                out.writeDate(info.validUntilMillis);
+                out.writeString(info.emails);
+                out.writeBoolean(info.ageQuality);
+                out.writeDecimal(info.area);
+                out.writeString(info.description);
+                out.writeBoolean(info.distanceFromSanitaryInstalationsQuality);
+                out.writeString(info.doorNumber);
+                out.writeBoolean(info.heightQuality);
+                out.writeString(info.identification);
+                out.writeBoolean(info.illuminationQuality);
+                out.writeString(info.observations);
+                out.writeBoolean(info.securityQuality);
+                out.writeString(info.classificationCode);
+                out.writeString(info.name);
+            }
+            out.writeVarLong(bean.blueprints.size());
+            for (SpaceBean.BlueprintBean blueprint : bean.blueprints) {
+                out.writeDate(blueprint.validFromMillis);
+                out.writeDate(blueprint.validUntilMillis);
+                out.writeString(blueprint.creationPerson);
+                out.writeBytes(blueprint.content);
+                out.writeString(blueprint.hash);
+            }
+        }
+
+    };
+
+    private final RecordEncoder<OccupationBean> occupationEncoder = new RecordEncoder<OccupationBean>() {
+
+        @Override
+        public void encode(OccupationBean bean, MigrationDataOutput out) {
+            out.writeString(bean.description);
+            out.writeString(bean.title);
+            out.writeString(bean.frequency);
+            out.writeDate(bean.beginDateMillis);
+            out.writeDate(bean.endDateMillis);
+            out.writeString(bean.beginTime);
+            out.writeString(bean.endTime);
+            out.writeBoolean(bean.saturday);
+            out.writeBoolean(bean.sunday);
+            out.writeVarLong(bean.spaces.size());
+            for (String space : bean.spaces) {
+                out.writeId(space);
+            }
+            writeIntervals(bean.intervals, out);
+            out.writeBoolean(bean.recurrent);
+            if (bean.recurrent != null) {
+                writeIntervals(bean.excluded, out);
+                out.writeString(bean.zone);
+            }
+        }
+
+        private void writeIntervals(Set<IntervalBean> intervals, MigrationDataOutput out) {
+            out.writeVarLong(intervals.size());
+            for (IntervalBean interval : intervals) {
+                out.writeSignedVarLong(interval.startMillis);
+                out.writeSignedVarLong(interval.endMillis);
+            }
+        }
+
+    };
+
+    private final RecordEncoder<EventSpaceOccupationBean> eventSpaceOccupationEncoder =
+            new RecordEncoder<EventSpaceOccupationBean>() {
+
+                @Override
+                public void encode(EventSpaceOccupationBean bean, MigrationDataOutput out) {
+                    out.writeId(bean.eventSpaceOccupation);
+                    out.writeId(bean.space);
+                }
+
+            };
+
+    private final RecordEncoder<ClassificationBean> classificationEncoder = new RecordEncoder<ClassificationBean>() {
+
+        @Override
+        public void encode(ClassificationBean bean, MigrationDataOutput out) {
+            out.writeInteger(bean.code);
+            out.writeString(bean.name);
+            out.writeVarLong(bean.childs.size());
+            for (ClassificationBean child : bean.childs) {
+                encode(child, out);
+            }
+        }
+
+    };
+
+    private OutputStream openExport(String filename) throws IOException {
+        final File file = new File(getExportDir(), filename);
+        taskLog("Streaming to %s\n", file.getAbsolutePath());
+        return metrics.countBytes(filename + ".bytes", new FileOutputStream(file));
     }
 
     private static class ClassificationBean {
@@ -346,10 +666,30 @@ public class SpaceMigrationTask extends CustomTask {
         }
     }
 
-    public void dumpClassifications(Gson gson) {
-        Set<ClassificationBean> classificationBeans = new HashSet<>();
+    public void dumpClassifications(Gson gson) throws IOException {
         taskLog("Dumping classifications to json ...");
+        if (STREAMING) {
+            try (RecordWriter<ClassificationBean> writer =
+                    openWriter(gson, "classifications", ClassificationBean.class, classificationEncoder)) {
+                collectClassifications(writer);
+                writer.finish();
+            }
+            return;
+        }
+
+        final Set<ClassificationBean> classificationBeans = new HashSet<>();
+        collectClassifications(new BeanSink<ClassificationBean>() {
+
+            @Override
+            public void accept(ClassificationBean bean) {
+                classificationBeans.add(bean);
+            }
 
+        });
+        output("classifications.json", gson.toJson(classificationBeans).getBytes());
+    }
+
+    private void collectClassifications(BeanSink<ClassificationBean> sink) {
         for (RoomClassification roomClassification : Bennu.getInstance().getRoomClassificationSet()) {
             if (roomClassification.getParentRoomClassification() == null) {
                 Set<ClassificationBean> children = new HashSet<ClassificationBean>();
@@ -359,26 +699,124 @@ public class SpaceMigrationTask extends CustomTask {
                 ClassificationBean classificationBean =
                         new ClassificationBean(roomClassification.getCode(),
                                 roomClassification.getName().getContent(Language.pt), children);
-                classificationBeans.add(classificationBean);
+                sink.accept(classificationBean);
             }
         }
-
-        output("classifications.json", gson.toJson(classificationBeans).getBytes());
     }
 
-    public void dumpOccupations(Gson gson) {
+    public void dumpOccupations(Gson gson) throws IOException {
         taskLog("Dumping occupations to json ...");
-        output("occupations.json", gson.toJson(getOccupations()).getBytes());
+        if (STREAMING) {
+            try (RecordWriter<OccupationBean> writer = openWriter(gson, "occupations", OccupationBean.class, occupationEncoder)) {
+                collectOccupations(writer);
+                writer.finish();
+            }
+        } else {
+            output("occupations.json", gson.toJson(getOccupations()).getBytes());
+        }
         taskLog("Done!");
     }
 
-    public void dumpEventSpaceOccupations(Gson gson) {
+    public void dumpEventSpaceOccupations(Gson gson) throws IOException {
         taskLog("Dumping occupations to json ...");
-        output("event_space_occupations.json", gson.toJson(getEventSpaceOccupations()).getBytes());
+        if (STREAMING) {
+            try (RecordWriter<EventSpaceOccupationBean> writer =
+                    openWriter(gson, "event_space_occupations", EventSpaceOccupationBean.class, eventSpaceOccupationEncoder)) {
+                collectEventSpaceOccupations(writer);
+                writer.finish();
+            }
+        } else {
+            output("event_space_occupations.json", gson.toJson(getEventSpaceOccupations()).getBytes());
+        }
         taskLog("Done!");
     }
 
-    public void dumpSpaces(Gson gson) {
+    private String storeBlueprint(byte[] content) {
+        try {
+            return blueprintPack.put(content);
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+    }
+
+    public void dumpAllocations(Gson gson) throws IOException {
+        taskLog("Dumping occupations and event space occupations to json in a single pass ...");
+        if (!STREAMING) {
+            final Set<OccupationBean> occupations = new HashSet<>();
+            final Set<EventSpaceOccupationBean> eventSpaceOccupations = new HashSet<>();
+            final ResourceAllocationClassifier classifier = new ResourceAllocationClassifier();
+            classifier.register(toOccupationBeans(new BeanSink<OccupationBean>() {
+
+                @Override
+                public void accept(OccupationBean bean) {
+                    occupations.add(bean);
+                }
+
+            }), Kind.GENERIC_EVENT);
+            classifier.register(toEventSpaceOccupationBeans(new BeanSink<EventSpaceOccupationBean>() {
+
+                @Override
+                public void accept(EventSpaceOccupationBean bean) {
+                    eventSpaceOccupations.add(bean);
+                }
+
+            }), Kind.WRITTEN_EVALUATION, Kind.LESSON_INSTANCE, Kind.LESSON);
+            runClassifier(classifier);
+            output("occupations.json", gson.toJson(occupations).getBytes());
+            output("event_space_occupations.json", gson.toJson(eventSpaceOccupations).getBytes());
+            taskLog("Done!");
+            return;
+        }
+
+        try (RecordWriter<OccupationBean> occupations = openWriter(gson, "occupations", OccupationBean.class, occupationEncoder);
+                RecordWriter<EventSpaceOccupationBean> eventSpaceOccupations =
+                        openWriter(gson, "event_space_occupations", EventSpaceOccupationBean.class,
+                                eventSpaceOccupationEncoder)) {
+            final ResourceAllocationClassifier classifier = new ResourceAllocationClassifier();
+            classifier.register(toOccupationBeans(occupations), Kind.GENERIC_EVENT);
+            classifier.register(toEventSpaceOccupationBeans(eventSpaceOccupations), Kind.WRITTEN_EVALUATION,
+                    Kind.LESSON_INSTANCE, Kind.LESSON);
+            runClassifier(classifier);
+            occupations.finish();
+            eventSpaceOccupations.finish();
+        }
+        taskLog("Done!");
+    }
+
+    public void dumpSpaces(Gson gson) throws Exception {
+        if (BLUEPRINT_PACK) {
+            blueprintPack = new BlueprintPack.Writer(getExportDir());
+        }
+        if (FINGERPRINTS || PREVIOUS_FINGERPRINTS != null) {
+            fingerprints = new SpaceFingerprints();
+        }
+        try {
+            if (PREVIOUS_FINGERPRINTS != null) {
+                deltaSpaces(gson, SpaceFingerprints.read(gson, new File(PREVIOUS_FINGERPRINTS)));
+            } else if (PARALLEL) {
+                shardSpaces(gson);
+            } else if (STREAMING) {
+                streamSpaces(gson);
+            } else {
+                collectSpaces(gson);
+            }
+            if (fingerprints != null && fingerprints.size() > 0) {
+                try (OutputStream out = openExport(SpaceFingerprints.FILENAME)) {
+                    fingerprints.write(gson, out);
+                }
+            }
+        } finally {
+            fingerprints = null;
+            if (blueprintPack != null) {
+                blueprintPack.close();
+                taskLog("blueprints: %d references, %d stored, %d bytes\n", blueprintPack.getReferences(),
+                        blueprintPack.getStored(), blueprintPack.getBytes());
+                blueprintPack = null;
+            }
+        }
+    }
+
+    private void collectSpaces(Gson gson) {
         final Multimap<Space, SpaceInformation> informations = HashMultimap.create();
         for (SpaceInformation information : Bennu.getInstance().getSpaceInformationsSet()) {
             informations.put(information.getSpace(), information);
@@ -401,4 +839,184 @@ public class SpaceMigrationTask extends CustomTask {
 
         output("spaces.json", json.getBytes());
     }
-}
\ No newline at end of file
+
+    private void streamSpaces(Gson gson) throws IOException {
+        final Set<Space> exported = new HashSet<>();
+        try (RecordWriter<SpaceBean> writer = openWriter(gson, "spaces", SpaceBean.class, spaceEncoder)) {
+            for (SpaceInformation information : Bennu.getInstance().getSpaceInformationsSet()) {
+                final Space space = information.getSpace();
+                if (space != null && exported.add(space)) {
+                    if (writer.getCount() % 100 == 0) {
+                        taskLog("processing space %s\n", writer.getCount() + 1);
+                    }
+                    writer.accept(convert(gson, space));
+                }
+            }
+            writer.finish();
+        }
+        taskLog("total spaces %d\n", exported.size());
+    }
+
+    private SpaceBean convert(Gson gson, Space space) {
+        final long start = System.nanoTime();
+        final SpaceBean bean = new SpaceBean(space);
+        metrics.time("spaces.convert", start);
+        return fingerprints == null ? bean : fingerprint(gson, bean);
+    }
+
+    private SpaceBean fingerprint(Gson gson, SpaceBean bean) {
+        final String fingerprint = SpaceFingerprints.fingerprint(gson.toJsonTree(bean, SpaceBean.class).getAsJsonObject());
+        fingerprints.put(bean.externalId, bean.parentExternalId, fingerprint);
+        return bean;
+    }
+
+    private static class SpaceDeltaBean {
+        public int unchanged;
+        public int changed;
+        public int created;
+        public List<String> deleted;
+    }
+
+    /**
+     * Exports only what differs from a previous export: changed spaces go to the usual spaces file, new ones to a separate
+     * file ordered parents first, and the ones that are gone are listed in the delta descriptor. Only the ids of the new
+     * spaces are kept while the first file is written, they are converted again, in order, for the second.
+     */
+    private void deltaSpaces(Gson gson, SpaceFingerprints previous) throws IOException {
+        final SpaceDeltaBean delta = new SpaceDeltaBean();
+        final Set<Space> exported = new HashSet<>();
+        final List<String> created = new ArrayList<>();
+        try (RecordWriter<SpaceBean> writer = openWriter(gson, "spaces", SpaceBean.class, spaceEncoder)) {
+            for (SpaceInformation information : Bennu.getInstance().getSpaceInformationsSet()) {
+                final Space space = information.getSpace();
+                if (space == null || !exported.add(space)) {
+                    continue;
+                }
+                final SpaceBean bean = convert(gson, space);
+                final String before = previous.getFingerprint(bean.externalId);
+                if (before == null) {
+                    created.add(bean.externalId);
+                } else if (!before.equals(fingerprints.getFingerprint(bean.externalId))) {
+                    writer.accept(bean);
+                } else {
+                    delta.unchanged++;
+                }
+            }
+            delta.changed = writer.getCount();
+            writer.finish();
+        }
+
+        Collections.sort(created, new Comparator<String>() {
+
+            @Override
+            public int compare(String a, String b) {
+                return Integer.compare(fingerprints.depth(a), fingerprints.depth(b));
+            }
+
+        });
+        try (RecordWriter<SpaceBean> writer = openWriter(gson, "spaces-created", SpaceBean.class, spaceEncoder)) {
+            for (String spaceId : created) {
+                final long start = System.nanoTime();
+                final SpaceBean bean = new SpaceBean(FenixFramework.<Space> getDomainObject(spaceId));
+                metrics.time("spaces.convert", start);
+                writer.accept(bean);
+            }
+            delta.created = writer.getCount();
+            writer.finish();
+        }
+
+        delta.deleted = fingerprints.removedSince(previous);
+        try (OutputStream out = openExport("spaces-delta.json")) {
+            out.write(gson.toJson(delta).getBytes(Charsets.UTF_8));
+        }
+        taskLog("delta of %d spaces: %d unchanged, %d changed, %d created, %d deleted\n", exported.size(), delta.unchanged,
+                delta.changed, delta.created, delta.deleted.size());
+    }
+
+    private static class ShardBean {
+        public String file;
+        public int spaces;
+
+        public ShardBean(String file, int spaces) {
+            super();
+            this.file = file;
+            this.spaces = spaces;
+        }
+    }
+
+    private static class ShardManifestBean {
+        public int spaces;
+        public List<ShardBean> shards;
+
+        public ShardManifestBean(int spaces, List<ShardBean> shards) {
+            super();
+            this.spaces = spaces;
+            this.shards = shards;
+        }
+    }
+
+    private void shardSpaces(final Gson gson) throws Exception {
+        final Set<String> spaceIds = new TreeSet<>();
+        for (SpaceInformation information : Bennu.getInstance().getSpaceInformationsSet()) {
+            final Space space = information.getSpace();
+            if (space != null) {
+                spaceIds.add(space.getExternalId());
+            }
+        }
+
+        final List<List<String>> ranges = Lists.partition(new ArrayList<>(spaceIds), SHARD_SIZE);
+        taskLog("total spaces %d, %d shards on %d threads\n", spaceIds.size(), ranges.size(), EXPORT_THREADS);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(EXPORT_THREADS);
+        try {
+            final List<Future<ShardBean>> futures = new ArrayList<>();
+            for (int i = 0; i < ranges.size(); i++) {
+                final String filename = exportFilename(String.format("spaces-%04d", i));
+                final List<String> range = ranges.get(i);
+                futures.add(executor.submit(new Callable<ShardBean>() {
+
+                    @Override
+                    public ShardBean call() throws Exception {
+                        return FenixFramework.getTransactionManager().withTransaction(new Callable<ShardBean>() {
+
+                            @Override
+                            public ShardBean call() throws Exception {
+                                return writeShard(gson, filename, range);
+                            }
+
+                        }, new AtomicInstance(TxMode.READ, false));
+                    }
+
+                }));
+            }
+
+            final List<ShardBean> shards = new ArrayList<>();
+            for (Future<ShardBean> future : futures) {
+                final ShardBean shard = future.get();
+                taskLog("shard %s with %d spaces\n", shard.file, shard.spaces);
+                shards.add(shard);
+            }
+            try (OutputStream manifest = openExport("spaces-manifest.json")) {
+                manifest.write(gson.toJson(new ShardManifestBean(spaceIds.size(), shards)).getBytes(Charsets.UTF_8));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private ShardBean writeShard(Gson gson, String filename, List<String> spaceIds) throws IOException {
+        try (RecordWriter<SpaceBean> writer =
+                newWriter(gson, "spaces", SpaceBean.class, spaceEncoder, compressed(openShard(filename)))) {
+            for (String spaceId : spaceIds) {
+                final Space space = FenixFramework.getDomainObject(spaceId);
+                writer.accept(convert(gson, space));
+            }
+            writer.finish();
+            return new ShardBean(filename, writer.getCount());
+        }
+    }
+
+    private OutputStream openShard(String filename) throws IOException {
+        return metrics.countBytes("spaces.bytes", new FileOutputStream(new File(getExportDir(), filename)));
+    }
+}